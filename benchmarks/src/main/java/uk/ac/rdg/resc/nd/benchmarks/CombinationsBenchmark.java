@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.rdg.resc.nd.AvailabilityIndex;
+import uk.ac.rdg.resc.nd.Config.ConfigException;
+import uk.ac.rdg.resc.nd.CoordinateIterator;
+import uk.ac.rdg.resc.nd.Dimension;
+
+/**
+ * Benchmarks the search for the first combination of values with images,
+ * which VariableSelector does at startup. The lazy {@link CoordinateIterator}
+ * is compared with building the list of every combination up front, as
+ * allCoordCombinations did originally.
+ *
+ * @author Guy Griffiths
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CombinationsBenchmark {
+    /** The number of selectable dimensions */
+    @Param({ "3", "6" })
+    private int nDimensions;
+
+    /** The number of values of each selectable dimension */
+    @Param({ "5", "8" })
+    private int nValues;
+
+    /** The fraction of combinations which have images */
+    @Param({ "1.0", "0.01" })
+    private double density;
+
+    private SyntheticData data;
+    private List<Dimension> dimensions;
+    private AvailabilityIndex index;
+
+    @Setup
+    public void setup() throws IOException, ConfigException {
+        data = new SyntheticData(nDimensions, nValues, density, false);
+        dimensions = data.getConfig().getSelectableDimensions();
+        index = new AvailabilityIndex(data.getConfig(), data.getNameFormat(), data.getImages());
+    }
+
+    @TearDown
+    public void tearDown() {
+        data.delete();
+    }
+
+    @Benchmark
+    public String[] lazy() {
+        CoordinateIterator combinations = new CoordinateIterator(dimensions);
+        String[] values = new String[dimensions.size()];
+        while (combinations.hasNext()) {
+            combinations.next();
+            combinations.getValues(values);
+            if (index.hasImages(values)) {
+                return values;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public String[] eager() {
+        for (String[] values : allCoordCombinations(dimensions)) {
+            if (index.hasImages(values)) {
+                return values;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists every combination of values, as it was implemented before
+     * {@link CoordinateIterator}
+     */
+    private static List<String[]> allCoordCombinations(List<Dimension> dimensions) {
+        dimensions = new ArrayList<>(dimensions);
+        if (dimensions.size() == 0) {
+            return new ArrayList<String[]>();
+        }
+        Dimension firstDimension = dimensions.remove(0);
+        List<String[]> coordCombination = new ArrayList<String[]>();
+        for (String coord : firstDimension.getValues()) {
+            coordCombination.add(new String[] { coord });
+        }
+        return coordCombinationsHelper(dimensions, coordCombination);
+    }
+
+    private static List<String[]> coordCombinationsHelper(List<Dimension> remainingDimensions,
+            List<String[]> coordCombinations) {
+        if (remainingDimensions.size() == 0) {
+            return coordCombinations;
+        }
+        Dimension myFirstList = remainingDimensions.remove(0);
+        List<String[]> newCombinations = new ArrayList<String[]>();
+        for (String[] s : coordCombinations) {
+            for (String s2 : myFirstList.getValues()) {
+                String[] values = Arrays.copyOf(s, s.length + 1);
+                values[s.length] = s2;
+                newCombinations.add(values);
+            }
+        }
+        return coordCombinationsHelper(remainingDimensions, newCombinations);
+    }
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.rdg.resc.nd.Dimension;
+import uk.ac.rdg.resc.nd.NameFormat;
+
+/**
+ * Compares rendering image names with a compiled {@link NameFormat} against
+ * the regular expression replacement which was previously used in
+ * ImageController
+ *
+ * @author Guy Griffiths
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameFormatBenchmark {
+    /** The number of selectable dimensions (there is one more which is plotted by) */
+    @Param({ "9" })
+    private int nSelectable;
+
+    /** Whether every other dimension value is empty */
+    @Param({ "false", "true" })
+    private boolean emptyValues;
+
+    private String format;
+    private List<Dimension> selectable;
+    private Dimension nonSelectable;
+    private NameFormat compiled;
+    private String[] values;
+    private String nonSelectableValue;
+
+    @Setup
+    public void setup() {
+        /*
+         * Build a format of the form ${d0}/${d1}/${d0}-?${d1}-?${d2}...-?${plot}.png
+         */
+        selectable = new ArrayList<>();
+        StringBuilder sb = new StringBuilder("${d0}/${d1}/${d0}");
+        values = new String[nSelectable];
+        for (int i = 0; i < nSelectable; i++) {
+            selectable.add(new Dimension("d" + i, "Dimension " + i, new ArrayList<String>()));
+            if (i > 0) {
+                sb.append("-?${d" + i + "}");
+            }
+            values[i] = (emptyValues && i % 2 == 1) ? "" : "value" + i;
+        }
+        sb.append("-?${plot}.png");
+        format = sb.toString();
+        nonSelectable = new Dimension("plot", "Plot", new ArrayList<String>());
+        nonSelectableValue = "histogram";
+        compiled = new NameFormat(format, selectable, nonSelectable);
+
+        if (!regex().equals(compiled())) {
+            throw new IllegalStateException("Compiled name format gives " + compiled()
+                    + " but regex replacement gives " + regex());
+        }
+    }
+
+    @Benchmark
+    public String regex() {
+        String name = format;
+        for (int i = 0; i < values.length; i++) {
+            name = doNameReplace(name, selectable.get(i).getDimName(), values[i]);
+        }
+        return doNameReplace(name, nonSelectable.getDimName(), nonSelectableValue);
+    }
+
+    @Benchmark
+    public String compiled() {
+        return compiled.render(nonSelectableValue, values);
+    }
+
+    /**
+     * The name replacement as it was implemented before {@link NameFormat}
+     */
+    private static String doNameReplace(String nameFormat, String dimName, String value) {
+        if (!value.isEmpty()) {
+            nameFormat = nameFormat.replaceAll("\\??\\$\\{" + dimName + "\\}", value);
+        } else {
+            nameFormat = nameFormat.replaceAll(".\\?\\$\\{" + dimName + "\\}", value);
+            nameFormat = nameFormat.replaceAll("\\$\\{" + dimName + "\\}", value);
+        }
+        return nameFormat;
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.rdg.resc.nd.AvailabilityIndex;
+import uk.ac.rdg.resc.nd.Config.ConfigException;
+import uk.ac.rdg.resc.nd.NameFormat;
+
+/**
+ * Benchmarks finding the images for a set of co-ordinates, as done by
+ * ImageController.getPath for every image view when the selection changes.
+ * 
+ * ImageController needs a running JavaFX toolkit, so this measures the same
+ * steps directly: rendering the name format and checking the
+ * {@link AvailabilityIndex}, compared with checking the filesystem as was done
+ * originally.
+ *
+ * @author Guy Griffiths
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathLookupBenchmark {
+    /** The number of selectable dimensions */
+    @Param({ "3", "6" })
+    private int nDimensions;
+
+    /** The number of values of each selectable dimension */
+    @Param({ "5" })
+    private int nValues;
+
+    /** The fraction of combinations which have images */
+    @Param({ "1.0", "0.1" })
+    private double density;
+
+    private SyntheticData data;
+    private String dataPath;
+    private NameFormat nameFormat;
+    private AvailabilityIndex index;
+    private String[][] queries;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException, ConfigException {
+        data = new SyntheticData(nDimensions, nValues, density, true);
+        dataPath = data.getConfig().getPath();
+        nameFormat = data.getNameFormat();
+        index = new AvailabilityIndex(data.getConfig(), nameFormat, data.getImages());
+        queries = data.getQueries(1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        data.delete();
+    }
+
+    /**
+     * @return The next combination to look up
+     */
+    private String[] nextQuery() {
+        next = (next + 1) % queries.length;
+        return queries[next];
+    }
+
+    @Benchmark
+    public int index() {
+        String[] query = nextQuery();
+        int found = 0;
+        for (String plot : SyntheticData.PLOT_VALUES) {
+            if (index.contains(nameFormat.render(plot, query))) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int filesystem() {
+        String[] query = nextQuery();
+        int found = 0;
+        for (String plot : SyntheticData.PLOT_VALUES) {
+            if (new File(dataPath + nameFormat.render(plot, query)).exists()) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
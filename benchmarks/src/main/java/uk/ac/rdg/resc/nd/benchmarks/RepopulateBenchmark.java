@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.rdg.resc.nd.AvailabilityIndex;
+import uk.ac.rdg.resc.nd.Config.ConfigException;
+import uk.ac.rdg.resc.nd.CoordinateSpace;
+import uk.ac.rdg.resc.nd.Dimension;
+
+/**
+ * Benchmarks finding the valid choices for every dimension, as done by
+ * VariableSelector.repopulateChoices after each selection. The per-dimension
+ * projections of the {@link AvailabilityIndex} are compared with checking
+ * every value of every dimension, as was done originally, and with looking
+ * them up by the indices of the selection's values.
+ *
+ * @author Guy Griffiths
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepopulateBenchmark {
+    /** The number of selectable dimensions */
+    @Param({ "3", "6" })
+    private int nDimensions;
+
+    /** The number of values of each selectable dimension */
+    @Param({ "5", "8" })
+    private int nValues;
+
+    /** The fraction of combinations which have images */
+    @Param({ "1.0", "0.1" })
+    private double density;
+
+    private SyntheticData data;
+    private List<Dimension> dimensions;
+    private AvailabilityIndex index;
+    private String[][] queries;
+    private int[][] indexQueries;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException, ConfigException {
+        data = new SyntheticData(nDimensions, nValues, density, false);
+        dimensions = data.getConfig().getSelectableDimensions();
+        index = new AvailabilityIndex(data.getConfig(), data.getNameFormat(), data.getImages());
+        queries = data.getQueries(1024);
+        CoordinateSpace space = data.getConfig().getCoordinateSpace();
+        indexQueries = new int[queries.length][];
+        for (int i = 0; i < queries.length; i++) {
+            indexQueries[i] = space.indicesOf(queries[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        data.delete();
+    }
+
+    @Benchmark
+    public int projections() {
+        next = (next + 1) % queries.length;
+        String[] selected = queries[next];
+        int available = 0;
+        for (int i = 0; i < dimensions.size(); i++) {
+            Set<String> values = index.getAvailableValues(i, selected);
+            available += values == null ? dimensions.get(i).getValues().size() : values.size();
+        }
+        return available;
+    }
+
+    @Benchmark
+    public int projectionIndices() {
+        next = (next + 1) % indexQueries.length;
+        int[] selected = indexQueries[next];
+        int available = 0;
+        for (int i = 0; i < dimensions.size(); i++) {
+            Set<Integer> values = index.getAvailableIndices(i, selected);
+            available += values == null ? dimensions.get(i).getValues().size() : values.size();
+        }
+        return available;
+    }
+
+    @Benchmark
+    public int perValue() {
+        next = (next + 1) % queries.length;
+        String[] selected = queries[next];
+        int available = 0;
+        for (int i = 0; i < dimensions.size(); i++) {
+            for (String value : dimensions.get(i).getValues()) {
+                String[] selectedValues = selected.clone();
+                selectedValues[i] = value;
+                if (index.hasImages(selectedValues)) {
+                    available++;
+                }
+            }
+        }
+        return available;
+    }
+}
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import uk.ac.rdg.resc.nd.Config;
+import uk.ac.rdg.resc.nd.Config.ConfigException;
+import uk.ac.rdg.resc.nd.CoordinateIterator;
+import uk.ac.rdg.resc.nd.Dimension;
+import uk.ac.rdg.resc.nd.NameFormat;
+
+/**
+ * Generates a synthetic dataset for the benchmarks to run against: a
+ * settings.cfg defining a number of dimensions with a number of values each,
+ * and (optionally) a tree of empty image files in which a given fraction of
+ * the combinations of values is present.
+ * 
+ * Images are named of the form d0/d1/d0-d1-...-plot.png, so that the tree is
+ * two directories deep. The dimension plotted by always has
+ * {@link SyntheticData#PLOT_VALUES} values.
+ *
+ * @author Guy Griffiths
+ */
+public class SyntheticData {
+    /** The values of the dimension which is plotted by */
+    public static final String[] PLOT_VALUES = { "", "histogram", "spatial" };
+
+    /** The directory holding the settings file and the data */
+    private final File root;
+    /** The generated settings file */
+    private final File configFile;
+    /** The {@link Config} read from the settings file */
+    private final Config config;
+    /** The compiled name format of the images */
+    private final NameFormat nameFormat;
+    /**
+     * The images which are present, mapped to their values as returned by
+     * {@link NameFormat#parse(String)}
+     */
+    private final Map<String, String[]> images = new HashMap<>();
+    /** The combinations of selectable values which have images */
+    private final List<String[]> present = new ArrayList<>();
+    /**
+     * The combinations of selectable values which have no images. These are
+     * not recorded if the density is 0
+     */
+    private final List<String[]> absent = new ArrayList<>();
+
+    /**
+     * @param nDimensions
+     *            The number of selectable dimensions
+     * @param nValues
+     *            The number of values each selectable dimension has
+     * @param density
+     *            The fraction of combinations of selectable values which have
+     *            images, between 0 and 1
+     * @param createFiles
+     *            Whether to create the image files on disk. If
+     *            <code>false</code>, only the settings file is written
+     * @throws IOException
+     *             If the files cannot be written
+     * @throws ConfigException
+     *             If the generated settings are invalid
+     */
+    public SyntheticData(int nDimensions, int nValues, double density, boolean createFiles)
+            throws IOException, ConfigException {
+        root = File.createTempFile("nd-benchmark", "");
+        if (!root.delete() || !root.mkdir()) {
+            throw new IOException("Cannot create directory " + root);
+        }
+        File dataPath = new File(root, "data");
+        dataPath.mkdir();
+        configFile = new File(root, "settings.cfg");
+        writeConfig(configFile, dataPath, nDimensions, nValues);
+        config = new Config(configFile);
+        nameFormat = new NameFormat(config);
+
+        /*
+         * Use a fixed seed so that every fork sees the same dataset
+         */
+        Random random = new Random(nDimensions * 1000L + nValues);
+        if (density <= 0.0) {
+            /*
+             * Nothing is present, so there is no need to visit every
+             * combination (of which there may be far too many). Queries are
+             * picked at random instead
+             */
+            return;
+        }
+        List<Dimension> dimensions = config.getSelectableDimensions();
+        CoordinateIterator combinations = new CoordinateIterator(dimensions);
+        while (combinations.hasNext()) {
+            combinations.next();
+            String[] values = new String[dimensions.size()];
+            combinations.getValues(values);
+            if (random.nextDouble() >= density) {
+                absent.add(values);
+                continue;
+            }
+            present.add(values);
+            for (String plot : PLOT_VALUES) {
+                String image = nameFormat.render(plot, values);
+                images.put(image, nameFormat.parse(image));
+                if (createFiles) {
+                    File file = new File(dataPath, image);
+                    file.getParentFile().mkdirs();
+                    if (!file.createNewFile() && !file.exists()) {
+                        throw new IOException("Cannot create " + file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a settings file for the dataset
+     */
+    private static void writeConfig(File configFile, File dataPath, int nDimensions,
+            int nValues) throws IOException {
+        try (PrintWriter out = new PrintWriter(configFile, "UTF-8")) {
+            StringBuilder format = new StringBuilder();
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < nDimensions; i++) {
+                if (i < 2) {
+                    format.append("${d" + i + "}/");
+                }
+                name.append("${d" + i + "}-");
+            }
+            out.println("path = " + dataPath.getAbsolutePath().replace('\\', '/'));
+            out.println("name_format = " + format + name + "?${plot}.png");
+            out.println("plot_by = plot");
+            out.println("grid_0_0 = .");
+            out.println("grid_0_1 = histogram");
+            out.println("grid_1_0 = spatial");
+            out.println("grid_1_1 = ${settings}");
+            out.println("row_heights = 50, 50");
+            out.println("col_widths = 50, 50");
+            out.println("persist_index = false");
+            out.println("watch_data = false");
+            for (int i = 0; i < nDimensions; i++) {
+                out.println();
+                out.println("[d" + i + ";Dimension " + i + "]");
+                for (int j = 0; j < nValues; j++) {
+                    out.println("value" + j);
+                }
+            }
+            out.println();
+            out.println("[plot;Plot type]");
+            for (String plot : PLOT_VALUES) {
+                out.println(plot.isEmpty() ? "." : plot);
+            }
+        }
+    }
+
+    /**
+     * @return The generated settings file
+     */
+    public File getConfigFile() {
+        return configFile;
+    }
+
+    /**
+     * @return The {@link Config} read from the generated settings file
+     */
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * @return The compiled name format of the images
+     */
+    public NameFormat getNameFormat() {
+        return nameFormat;
+    }
+
+    /**
+     * @return The images which are present, relative to the data path, mapped
+     *         to their dimension values as returned by
+     *         {@link NameFormat#parse(String)}
+     */
+    public Map<String, String[]> getImages() {
+        return images;
+    }
+
+    /**
+     * Picks combinations of selectable values to query, roughly half of which
+     * have images (if there are both present and absent combinations). If
+     * the density is 0, the combinations are picked at random from all of
+     * them.
+     * 
+     * @param n
+     *            The number of combinations to pick
+     * @return The combinations
+     */
+    public String[][] getQueries(int n) {
+        Random random = new Random(n);
+        String[][] queries = new String[n][];
+        List<Dimension> dimensions = config.getSelectableDimensions();
+        for (int i = 0; i < n; i++) {
+            if (absent.isEmpty() && present.isEmpty()) {
+                String[] values = new String[dimensions.size()];
+                for (int j = 0; j < values.length; j++) {
+                    List<String> dimValues = dimensions.get(j).getValues();
+                    values[j] = dimValues.get(random.nextInt(dimValues.size()));
+                }
+                queries[i] = values;
+                continue;
+            }
+            List<String[]> from;
+            if (absent.isEmpty()) {
+                from = present;
+            } else if (present.isEmpty()) {
+                from = absent;
+            } else {
+                from = random.nextBoolean() ? present : absent;
+            }
+            queries[i] = from.get(random.nextInt(from.size()));
+        }
+        return queries;
+    }
+
+    /**
+     * Deletes the generated files
+     */
+    public void delete() {
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,643 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory index of the images which are present in the data path.
+ * 
+ * The data path is scanned once when the index is created, so that checking
+ * whether an image exists does not require a call to the filesystem. Images
+ * may be added and removed afterwards (e.g. by a {@link DataWatcher}) while
+ * the index is being queried from other threads.
+ * 
+ * Combinations of dimension values are stored as keys from the
+ * {@link CoordinateSpace} of the selectable dimensions, so they can be looked
+ * up by index as well as by value, without allocating. If there are too many
+ * combinations of values for the space to be packed into keys, lists of
+ * indices are used instead.
+ *
+ * @author Guy Griffiths
+ */
+public class AvailabilityIndex {
+    /**
+     * The most values of a dimension to offer for selection at once.
+     * Dimensions with more (typically ranges) offer this many around the
+     * selected value, along with the first and last.
+     */
+    public static final int MAX_CHOICES = 100;
+
+    /** The compiled {@link NameFormat} of the images */
+    private final NameFormat nameFormat;
+    /** The number of selectable dimensions */
+    private final int nSelectable;
+    /** Converts between selectable dimension values, indices and keys */
+    private final CoordinateSpace space;
+    /** The paths of all images present, relative to the data path */
+    private final Set<String> images = ConcurrentHashMap.newKeySet();
+    /** Whether each selectable dimension is used in the name format */
+    private final boolean[] used;
+    /** Guards the combinations and projections */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * The combinations of selectable dimension values for which at least one
+     * image is present, mapped to the number of images present. Keyed by
+     * {@link CoordinateSpace} key if the space is packable, so that lookups do
+     * not allocate, otherwise <code>null</code>.
+     */
+    private final LongKeyMap<Integer> packedCombinations;
+    /**
+     * The combinations, keyed by the indices of their values, if the space is
+     * not packable, otherwise <code>null</code>
+     */
+    private final Map<List<Integer>, Integer> listCombinations;
+    /**
+     * For each selectable dimension, the indices of the values of that
+     * dimension for which at least one combination is present, keyed by the
+     * values of the other dimensions (with this one having no value). Each
+     * index is mapped to the number of combinations it appears in. The entry
+     * is <code>null</code> for dimensions which are not in the name format.
+     * Keyed like {@link AvailabilityIndex#packedCombinations}.
+     */
+    private final List<LongKeyMap<Map<Integer, Integer>>> packedProjections;
+    /**
+     * The projections, keyed like {@link AvailabilityIndex#listCombinations}
+     */
+    private final List<Map<List<Integer>, Map<Integer, Integer>>> listProjections;
+    /** The number of existence checks which have been answered by the index */
+    private final AtomicLong lookups = new AtomicLong(0L);
+
+    /**
+     * Create a new {@link AvailabilityIndex} by scanning the data path
+     * 
+     * @param config
+     *            The {@link Config} defining the data path and dimensions
+     * @param nameFormat
+     *            The compiled {@link NameFormat} of the images
+     */
+    public AvailabilityIndex(Config config, NameFormat nameFormat) {
+        this(config, nameFormat, new DirectoryScanner(config, nameFormat).scan());
+    }
+
+    /**
+     * Create a new {@link AvailabilityIndex} from images which have already
+     * been found
+     * 
+     * @param config
+     *            The {@link Config} defining the dimensions
+     * @param nameFormat
+     *            The compiled {@link NameFormat} of the images
+     * @param found
+     *            A {@link Map} of the path of each image (relative to the data
+     *            path) to its dimension values, as returned by
+     *            {@link NameFormat#parse(String)}
+     */
+    public AvailabilityIndex(Config config, NameFormat nameFormat, Map<String, String[]> found) {
+        this.nameFormat = nameFormat;
+        this.nSelectable = config.getSelectableDimensions().size();
+        this.space = config.getCoordinateSpace();
+
+        used = new boolean[nSelectable];
+        for (int i = 0; i < nSelectable; i++) {
+            used[i] = nameFormat.usesDimension(i);
+        }
+
+        /*
+         * Combinations are keyed by a single long where possible. There may be
+         * too many combinations of values for that, in which case they are
+         * keyed by lists of indices instead.
+         */
+        if (space.isPackable()) {
+            packedCombinations = new LongKeyMap<>();
+            listCombinations = null;
+            packedProjections = new ArrayList<>();
+            listProjections = null;
+            for (int i = 0; i < nSelectable; i++) {
+                packedProjections.add(used[i] ? new LongKeyMap<Map<Integer, Integer>>() : null);
+            }
+        } else {
+            packedCombinations = null;
+            listCombinations = new HashMap<>();
+            packedProjections = null;
+            listProjections = new ArrayList<>();
+            for (int i = 0; i < nSelectable; i++) {
+                listProjections.add(used[i] ? new HashMap<List<Integer>, Map<Integer, Integer>>()
+                        : null);
+            }
+        }
+
+        for (Entry<String, String[]> image : found.entrySet()) {
+            add(image.getKey(), image.getValue());
+        }
+    }
+
+    /**
+     * Creates an {@link AvailabilityIndex}. If the data is in an
+     * {@link ImagePack}, its index is used. Otherwise the stored index file is
+     * used if the {@link Config} allows it, or the data path is scanned.
+     * 
+     * @param config
+     *            The {@link Config} defining the data path and dimensions
+     * @param nameFormat
+     *            The compiled {@link NameFormat} of the images
+     * @param pack
+     *            The {@link ImagePack} holding the images, or
+     *            <code>null</code> if they are in the data path
+     * @param listener
+     *            A {@link DirectoryScanner.ProgressListener} to notify as
+     *            directories are scanned, or <code>null</code>
+     * @return The new {@link AvailabilityIndex}
+     */
+    public static AvailabilityIndex create(Config config, NameFormat nameFormat,
+            ImagePack pack, DirectoryScanner.ProgressListener listener) {
+        if (pack != null) {
+            return new AvailabilityIndex(config, nameFormat, pack.getImages(nameFormat));
+        } else if (config.isPersistIndex()) {
+            IndexFile indexFile = new IndexFile(config.getIndexFile(), config, nameFormat,
+                    listener);
+            AvailabilityIndex index = new AvailabilityIndex(config, nameFormat,
+                    indexFile.load());
+            System.out.println("Loaded image index: " + indexFile.getDirsReused()
+                    + " directories unchanged, " + indexFile.getDirsListed() + " rescanned");
+            return index;
+        } else {
+            return new AvailabilityIndex(config, nameFormat, new DirectoryScanner(config,
+                    nameFormat, listener).scan());
+        }
+    }
+
+    /**
+     * Adds an image to the index
+     * 
+     * @param relativePath
+     *            The path of the image, relative to the data path
+     * @param coords
+     *            The dimension values of the image, as returned by
+     *            {@link NameFormat#parse(String)}
+     * @return <code>true</code> if the image was not already in the index
+     */
+    public boolean add(String relativePath, String[] coords) {
+        lock.writeLock().lock();
+        try {
+            if (!images.add(relativePath)) {
+                return false;
+            }
+            int[] combination = space.indicesOf(coords);
+            Integer count = getCount(combination);
+            setCount(combination, count == null ? 1 : count + 1);
+            if (count == null) {
+                /*
+                 * A new combination, so its values become available given the
+                 * values of the other dimensions
+                 */
+                for (int i = 0; i < nSelectable; i++) {
+                    if (used[i]) {
+                        Map<Integer, Integer> values = getProjection(i, combination);
+                        if (values == null) {
+                            values = new ConcurrentHashMap<>();
+                            setProjection(i, combination, values);
+                        }
+                        Integer valueCount = values.get(combination[i]);
+                        values.put(combination[i], valueCount == null ? 1 : valueCount + 1);
+                    }
+                }
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an image from the index
+     * 
+     * @param relativePath
+     *            The path of the image, relative to the data path
+     * @return <code>true</code> if the image was in the index
+     */
+    public boolean remove(String relativePath) {
+        lock.writeLock().lock();
+        try {
+            if (!images.remove(relativePath)) {
+                return false;
+            }
+            /*
+             * Only images which matched the name format were added, so this
+             * will parse successfully
+             */
+            int[] combination = space.indicesOf(nameFormat.parse(relativePath));
+            Integer count = getCount(combination);
+            if (count == null || count <= 1) {
+                setCount(combination, null);
+                for (int i = 0; i < nSelectable; i++) {
+                    if (used[i]) {
+                        Map<Integer, Integer> values = getProjection(i, combination);
+                        if (values != null) {
+                            Integer valueCount = values.get(combination[i]);
+                            if (valueCount == null || valueCount <= 1) {
+                                values.remove(combination[i]);
+                            } else {
+                                values.put(combination[i], valueCount - 1);
+                            }
+                            if (values.isEmpty()) {
+                                setProjection(i, combination, null);
+                            }
+                        }
+                    }
+                }
+            } else {
+                setCount(combination, count - 1);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checks whether an image is present
+     * 
+     * @param relativePath
+     *            The path of the image, relative to the data path
+     * @return <code>true</code> if the image is present
+     */
+    public boolean contains(String relativePath) {
+        lookups.incrementAndGet();
+        return images.contains(relativePath);
+    }
+
+    /**
+     * Checks whether any image is present for a combination of selectable
+     * dimension values
+     * 
+     * @param selectableValues
+     *            The values of the selectable {@link Dimension}s
+     * @return <code>true</code> if at least one image is present for any value
+     *         of the non-selectable dimension
+     */
+    public boolean hasImages(String... selectableValues) {
+        return hasImages(space.indicesOf(selectableValues));
+    }
+
+    /**
+     * Checks whether any image is present for a combination of selectable
+     * dimension values. If the {@link CoordinateSpace} is packable, this does
+     * not allocate.
+     * 
+     * @param selectableIndices
+     *            The indices of the values of the selectable {@link Dimension}s
+     *            in the {@link CoordinateSpace} from
+     *            {@link Config#getCoordinateSpace()}
+     * @return <code>true</code> if at least one image is present for any value
+     *         of the non-selectable dimension
+     */
+    public boolean hasImages(int[] selectableIndices) {
+        lookups.incrementAndGet();
+        lock.readLock().lock();
+        try {
+            return getCount(selectableIndices) != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the values of a selectable dimension for which images are present,
+     * given the values of all of the other selectable dimensions. This is a
+     * single lookup, regardless of the number of values the dimension has.
+     * 
+     * @param dimension
+     *            The index of the selectable {@link Dimension}
+     * @param selectableValues
+     *            The values of the selectable {@link Dimension}s. The value at
+     *            <code>dimension</code> is ignored
+     * @return The values of the dimension for which at least one image is
+     *         present, or <code>null</code> if the dimension is not in the name
+     *         format and images are present (so every value is available)
+     */
+    public Set<String> getAvailableValues(int dimension, String... selectableValues) {
+        Set<Integer> available = getAvailableIndices(dimension,
+                space.indicesOf(selectableValues));
+        if (available == null) {
+            return null;
+        }
+        Set<String> values = new HashSet<>();
+        for (Integer value : available) {
+            values.add(space.valueOf(dimension, value));
+        }
+        return values;
+    }
+
+    /**
+     * Gets the indices of the values of a selectable dimension for which
+     * images are present, given the values of all of the other selectable
+     * dimensions. This is a single lookup, regardless of the number of values
+     * the dimension has.
+     * 
+     * @param dimension
+     *            The index of the selectable {@link Dimension}
+     * @param selectableIndices
+     *            The indices of the values of the selectable {@link Dimension}s
+     *            in the {@link CoordinateSpace} from
+     *            {@link Config#getCoordinateSpace()}. The value at
+     *            <code>dimension</code> is ignored
+     * @return The indices of the values of the dimension for which at least
+     *         one image is present, or <code>null</code> if the dimension is
+     *         not in the name format and images are present (so every value is
+     *         available)
+     */
+    public Set<Integer> getAvailableIndices(int dimension, int[] selectableIndices) {
+        if (!used[dimension]) {
+            return hasImages(selectableIndices) ? null : Collections.<Integer> emptySet();
+        }
+        lookups.incrementAndGet();
+        lock.readLock().lock();
+        try {
+            Map<Integer, Integer> values = getProjection(dimension, selectableIndices);
+            if (values == null) {
+                return Collections.emptySet();
+            }
+            return Collections.unmodifiableSet(values.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the values of a selectable dimension to offer for selection, given
+     * the values of the others. Only the values offered are looked up, so a
+     * long range is never expanded.
+     * 
+     * @param dimension
+     *            The index of the selectable {@link Dimension}
+     * @param selectableIndices
+     *            The indices of the values of the selectable {@link Dimension}s
+     *            in the {@link CoordinateSpace} from
+     *            {@link Config#getCoordinateSpace()}, or <code>null</code> to
+     *            offer any value of the dimension
+     * @return The values of the dimension for which images are present, in
+     *         the order of the dimension. If there are more than
+     *         {@link AvailabilityIndex#MAX_CHOICES}, only that many around the
+     *         selected value are given, along with the first and last.
+     */
+    public List<String> getChoices(int dimension, int[] selectableIndices) {
+        int[] sorted = null;
+        int selected = 0;
+        if (selectableIndices != null) {
+            selected = selectableIndices[dimension];
+            Set<Integer> available = getAvailableIndices(dimension, selectableIndices);
+            if (available != null) {
+                sorted = new int[available.size()];
+                int n = 0;
+                for (Integer value : available) {
+                    sorted[n++] = value;
+                }
+                Arrays.sort(sorted);
+            }
+        }
+
+        int n = sorted == null ? space.size(dimension) : sorted.length;
+        int position = selected;
+        if (sorted != null) {
+            position = Arrays.binarySearch(sorted, selected);
+            if (position < 0) {
+                position = -position - 1;
+            }
+        }
+        int from = 0;
+        int to = n;
+        if (n > MAX_CHOICES) {
+            from = Math.max(0, Math.min(position - MAX_CHOICES / 2, n - MAX_CHOICES));
+            to = from + MAX_CHOICES;
+        }
+
+        List<String> choices = new ArrayList<>();
+        if (from > 0) {
+            choices.add(space.valueOf(dimension, sorted == null ? 0 : sorted[0]));
+        }
+        for (int i = from; i < to; i++) {
+            choices.add(space.valueOf(dimension, sorted == null ? i : sorted[i]));
+        }
+        if (to < n) {
+            choices.add(space.valueOf(dimension, sorted == null ? n - 1 : sorted[n - 1]));
+        }
+        return choices;
+    }
+
+    /**
+     * @return The number of images present for a combination of selectable
+     *         dimension values, or <code>null</code> if there are none
+     */
+    private Integer getCount(int[] combination) {
+        if (packedCombinations != null) {
+            return packedCombinations.get(packedKey(combination, -1));
+        }
+        return listCombinations.get(listKey(combination, -1));
+    }
+
+    /**
+     * Sets the number of images present for a combination of selectable
+     * dimension values, removing it if the count is <code>null</code>
+     */
+    private void setCount(int[] combination, Integer count) {
+        if (packedCombinations != null) {
+            long key = packedKey(combination, -1);
+            if (count == null) {
+                packedCombinations.remove(key);
+            } else {
+                packedCombinations.put(key, count);
+            }
+        } else if (count == null) {
+            listCombinations.remove(listKey(combination, -1));
+        } else {
+            listCombinations.put(listKey(combination, -1), count);
+        }
+    }
+
+    /**
+     * @return The available values of a dimension given the values of the
+     *         others in a combination, or <code>null</code> if there are none
+     */
+    private Map<Integer, Integer> getProjection(int dimension, int[] combination) {
+        if (packedProjections != null) {
+            return packedProjections.get(dimension).get(packedKey(combination, dimension));
+        }
+        return listProjections.get(dimension).get(listKey(combination, dimension));
+    }
+
+    /**
+     * Sets the available values of a dimension given the values of the others
+     * in a combination, removing them if they are <code>null</code>
+     */
+    private void setProjection(int dimension, int[] combination, Map<Integer, Integer> values) {
+        if (packedProjections != null) {
+            long key = packedKey(combination, dimension);
+            if (values == null) {
+                packedProjections.get(dimension).remove(key);
+            } else {
+                packedProjections.get(dimension).put(key, values);
+            }
+        } else if (values == null) {
+            listProjections.get(dimension).remove(listKey(combination, dimension));
+        } else {
+            listProjections.get(dimension).put(listKey(combination, dimension), values);
+        }
+    }
+
+    /**
+     * @param combination
+     *            The indices of a combination of selectable dimension values
+     * @param dimension
+     *            The index of a selectable dimension to leave out, or -1
+     * @return The key of the combination, without the given dimension or any
+     *         dimension which is not in the name format
+     */
+    private long packedKey(int[] combination, int dimension) {
+        long key = 0L;
+        for (int i = 0; i < nSelectable; i++) {
+            if (i != dimension && used[i]) {
+                key = space.with(key, i, combination[i]);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * @param combination
+     *            The indices of a combination of selectable dimension values
+     * @param dimension
+     *            The index of a selectable dimension to leave out, or -1
+     * @return A list of the indices, with -1 in place of the given dimension
+     *         and any dimension which is not in the name format
+     */
+    private List<Integer> listKey(int[] combination, int dimension) {
+        Integer[] key = new Integer[nSelectable];
+        for (int i = 0; i < nSelectable; i++) {
+            key[i] = i != dimension && used[i] ? combination[i] : -1;
+        }
+        return Arrays.asList(key);
+    }
+
+    /**
+     * Gets a combination of selectable dimension values for which images are
+     * present, from the first image in the index. This takes constant time,
+     * however many combinations are possible.
+     * 
+     * @return The indices of the values of the combination, in the
+     *         {@link CoordinateSpace} from {@link Config#getCoordinateSpace()},
+     *         or <code>null</code> if there are no images. Dimensions which
+     *         are not in the name format have their first value.
+     */
+    public int[] getAnyCombination() {
+        for (String image : images) {
+            String[] coords = nameFormat.parse(image);
+            if (coords == null) {
+                continue;
+            }
+            int[] combination = space.indicesOf(coords);
+            for (int i = 0; i < nSelectable; i++) {
+                if (!used[i]) {
+                    if (space.size(i) == 0) {
+                        return null;
+                    }
+                    combination[i] = 0;
+                }
+            }
+            return combination;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the combinations of selectable dimension values for which images
+     * are present. This takes time proportional to the number of images, not
+     * to the number of possible combinations.
+     * 
+     * @return The indices of the values of each combination, in the
+     *         {@link CoordinateSpace} from {@link Config#getCoordinateSpace()},
+     *         in ascending order. Dimensions which are not in the name format
+     *         have the index -1.
+     */
+    public List<int[]> getCombinations() {
+        Set<int[]> combinations = new TreeSet<>(new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                for (int i = 0; i < a.length; i++) {
+                    if (a[i] != b[i]) {
+                        return a[i] < b[i] ? -1 : 1;
+                    }
+                }
+                return 0;
+            }
+        });
+        for (String image : images) {
+            String[] coords = nameFormat.parse(image);
+            if (coords != null) {
+                combinations.add(space.indicesOf(coords));
+            }
+        }
+        return new ArrayList<>(combinations);
+    }
+
+    /**
+     * @return The paths of all images in the index, relative to the data path
+     */
+    public Set<String> getImages() {
+        return Collections.unmodifiableSet(images);
+    }
+
+    /**
+     * @return The number of images in the index
+     */
+    public int size() {
+        return images.size();
+    }
+
+    /**
+     * @return The number of existence checks which have been answered from the
+     *         index, i.e. the number of filesystem stats which have been saved
+     */
+    public long getStatsSaved() {
+        return lookups.get();
+    }
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of encoded responses (images and rendered composites) shared between
+ * the requests handled by an {@link ImageServer}, limited by the number of
+ * bytes they occupy.
+ * 
+ * Each entry is stored with its entity tag, which changes whenever the files
+ * it was built from change, so that out of date entries are never returned.
+ * When the cache is full, the least recently used entries are evicted.
+ *
+ * @author Guy Griffiths
+ */
+public class ByteCache {
+    /** The maximum number of bytes which cached entries may occupy */
+    private final long maxBytes;
+    /** The cached entries, in order of least to most recently used */
+    private final LinkedHashMap<String, CachedBytes> entries = new LinkedHashMap<>(16, 0.75f,
+            true);
+    /** The number of bytes currently occupied by cached entries */
+    private long residentBytes = 0L;
+
+    private long hits = 0L;
+    private long misses = 0L;
+    private long evictions = 0L;
+
+    /**
+     * @param maxBytes
+     *            The maximum number of bytes which cached entries may occupy
+     */
+    public ByteCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Retrieves an entry from the cache
+     * 
+     * @param key
+     *            The key of the entry
+     * @param etag
+     *            The current entity tag of the entry
+     * @return The cached bytes, or <code>null</code> if they are not present
+     *         or are out of date
+     */
+    public synchronized byte[] get(String key, String etag) {
+        CachedBytes cached = entries.get(key);
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        if (!cached.etag.equals(etag)) {
+            entries.remove(key);
+            residentBytes -= cached.bytes.length;
+            misses++;
+            return null;
+        }
+        hits++;
+        return cached.bytes;
+    }
+
+    /**
+     * Adds an entry to the cache, evicting the least recently used entries if
+     * required. Entries larger than the entire cache are not cached.
+     * 
+     * @param key
+     *            The key of the entry
+     * @param etag
+     *            The entity tag of the entry
+     * @param bytes
+     *            The bytes to cache
+     */
+    public synchronized void put(String key, String etag, byte[] bytes) {
+        if (bytes.length > maxBytes) {
+            return;
+        }
+        CachedBytes previous = entries.put(key, new CachedBytes(etag, bytes));
+        if (previous != null) {
+            residentBytes -= previous.bytes.length;
+        }
+        residentBytes += bytes.length;
+
+        Iterator<CachedBytes> it = entries.values().iterator();
+        while (residentBytes > maxBytes && it.hasNext()) {
+            CachedBytes eldest = it.next();
+            it.remove();
+            residentBytes -= eldest.bytes.length;
+            evictions++;
+        }
+    }
+
+    /**
+     * @return The number of bytes occupied by cached entries
+     */
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return entries.size() + " responses (" + (residentBytes / (1024 * 1024)) + "/"
+                + (maxBytes / (1024 * 1024)) + "MB), " + hits + " hits, " + misses + " misses, "
+                + evictions + " evictions";
+    }
+
+    /**
+     * Cached bytes along with the entity tag needed to validate them
+     */
+    private static class CachedBytes {
+        private final String etag;
+        private final byte[] bytes;
+
+        public CachedBytes(String etag, byte[] bytes) {
+            this.etag = etag;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -44,9 +44,16 @@ import java.util.regex.Pattern;
  */
 public class Config {
     public final static String SETTINGS = "${settings}";
+    /** The name of the file storing the image index, next to the config file */
+    public final static String INDEX_FILE_NAME = "settings.idx";
+
+    /** The config file */
+    private File configFile;
 
     /** The path to the data */
     private String path = null;
+    /** Whether the path refers to an {@link ImagePack} rather than a directory */
+    private boolean pack = false;
     /** The naming format of the images to be displayed */
     private String nameFormat = null;
     /** The number of rows of images */
@@ -59,10 +66,37 @@ public class Config {
     private List<Dimension> selectableDimensions = new ArrayList<>();
     /** The {@link Dimension}s which varies across the screen */
     private Dimension nonSelectableDimension = null;
+    /** The indices and keys of the selectable dimensions' values */
+    private CoordinateSpace coordinateSpace = null;
     /** The relative percentages of the row heights */
     private double[] rowHeights;
     /** The relative percentages of the column widths */
     private double[] colWidths;
+    /** The maximum size of the decoded image cache, in megabytes */
+    private int cacheSize = 256;
+    /** The maximum number of neighbouring images to load in advance */
+    private int prefetchSize = 16;
+    /** The directory to store downscaled copies of images in */
+    private String diskCachePath = null;
+    /** The maximum size of the downscaled image cache, in megabytes */
+    private int diskCacheSize = 1024;
+    /** Whether to watch the data path for new images */
+    private boolean watchData = true;
+    /** Whether to store the image index between runs */
+    private boolean persistIndex = true;
+    /** The number of threads to scan the data path with */
+    private int scanThreads = Runtime.getRuntime().availableProcessors();
+    /** The interval between logging performance metrics, in seconds */
+    private int metricsLogInterval = 0;
+    /** The time the JavaFX thread may be blocked for before it is reported */
+    private int stallThreshold = 500;
+    /** The number of frames to load ahead of the current one during playback */
+    private int playbackBuffer = 16;
+    /**
+     * The time to wait for all of a selection's images before showing those
+     * which have loaded, in milliseconds, or 0 to show each image as it loads
+     */
+    private int swapBudget = 0;
 
     /**
      * Parse the config file and initialise all of the valid variables
@@ -75,6 +109,7 @@ public class Config {
      *             If the configuration is not valid for some reason
      */
     public Config(File configFile) throws IOException, ConfigException {
+        this.configFile = configFile;
         BufferedReader reader = new BufferedReader(new FileReader(configFile));
         try {
             String plotByField = null;
@@ -91,6 +126,7 @@ public class Config {
              */
             boolean definingDimension = false;
             Dimension currentDimension = null;
+            DimensionValues currentValues = null;
 
             /*
              * We start with zero-length arrays. If the row heights/column
@@ -151,7 +187,8 @@ public class Config {
                     /*
                      * Start a new dimension.
                      */
-                    currentDimension = new Dimension(name, title, new ArrayList<>());
+                    currentValues = new DimensionValues();
+                    currentDimension = new Dimension(name, title, currentValues);
                     continue;
                 }
 
@@ -160,14 +197,28 @@ public class Config {
                  */
                 if (definingDimension && !line.trim().isEmpty()) {
                     line = line.trim();
-                    if (line.equals(".")) {
+                    /*
+                     * Ranges of numbers or dates are declared in a single
+                     * line, and their values computed when needed
+                     */
+                    DimensionValues.Range range;
+                    try {
+                        range = DimensionValues.parseRange(line);
+                    } catch (IllegalArgumentException e) {
+                        reader.close();
+                        throw new ConfigException("Problem with the values of dimension "
+                                + currentDimension.getDimName() + ": " + e.getMessage());
+                    }
+                    if (range != null) {
+                        currentValues.addRange(range);
+                    } else if (line.equals(".")) {
                         /*
                          * We define empty dimensions in the config with a
                          * single dot
                          */
-                        currentDimension.getValues().add("");
+                        currentValues.add("");
                     } else {
-                        currentDimension.getValues().add(line);
+                        currentValues.add(line);
                     }
                 }
 
@@ -181,6 +232,11 @@ public class Config {
                     }
 
                     path = readField(line, "path");
+                    /*
+                     * A path to a file refers to an image pack. Images in the
+                     * pack are referred to as though it were a directory.
+                     */
+                    pack = new File(path).isFile();
                     if (!path.endsWith("/")) {
                         path = path + "/";
                     }
@@ -267,6 +323,96 @@ public class Config {
                     }
                 }
 
+                /*
+                 * Define the size of the image cache
+                 */
+                if (line.startsWith("cache_size")) {
+                    cacheSize = readIntField(line, "cache_size");
+                    definingDimension = false;
+                }
+
+                /*
+                 * Define the number of images to prefetch
+                 */
+                if (line.startsWith("prefetch_size")) {
+                    prefetchSize = readIntField(line, "prefetch_size");
+                    definingDimension = false;
+                }
+
+                /*
+                 * Define the location and size of the downscaled image cache
+                 */
+                if (line.startsWith("disk_cache_path")) {
+                    diskCachePath = readField(line, "disk_cache_path");
+                    definingDimension = false;
+                }
+                if (line.startsWith("disk_cache_size")) {
+                    diskCacheSize = readIntField(line, "disk_cache_size");
+                    definingDimension = false;
+                }
+
+                /*
+                 * Define whether to watch for new images
+                 */
+                if (line.startsWith("watch_data")) {
+                    watchData = readBooleanField(line, "watch_data");
+                    definingDimension = false;
+                }
+
+                /*
+                 * Define whether to store the image index
+                 */
+                if (line.startsWith("persist_index")) {
+                    persistIndex = readBooleanField(line, "persist_index");
+                    definingDimension = false;
+                }
+
+                /*
+                 * Define the number of threads to scan the data with
+                 */
+                if (line.startsWith("scan_threads")) {
+                    scanThreads = readIntField(line, "scan_threads");
+                    if (scanThreads < 1) {
+                        throw new ConfigException("scan_threads must be at least 1");
+                    }
+                    definingDimension = false;
+                }
+
+                /*
+                 * Define how often to log the performance metrics
+                 */
+                if (line.startsWith("metrics_log_interval")) {
+                    metricsLogInterval = readIntField(line, "metrics_log_interval");
+                    definingDimension = false;
+                }
+
+                /*
+                 * Define how long the display may freeze before it is reported
+                 */
+                if (line.startsWith("stall_threshold")) {
+                    stallThreshold = readIntField(line, "stall_threshold");
+                    definingDimension = false;
+                }
+
+                /*
+                 * Define how far ahead to load frames during playback
+                 */
+                if (line.startsWith("playback_buffer")) {
+                    playbackBuffer = readIntField(line, "playback_buffer");
+                    if (playbackBuffer < 1) {
+                        throw new ConfigException("playback_buffer must be at least 1");
+                    }
+                    definingDimension = false;
+                }
+
+                /*
+                 * Define how long to wait to show a selection's images together
+                 */
+                if (line.startsWith("swap_budget")) {
+                    swapBudget = readIntField(line, "swap_budget");
+                    definingDimension = false;
+                }
+
                 /*
                  * Define the grid layout
                  */
@@ -331,6 +477,7 @@ public class Config {
                 throw new ConfigException("You have stated the field " + plotByField
                         + " to plot by, but this is not defined as a dimension");
             }
+            coordinateSpace = new CoordinateSpace(selectableDimensions);
 
             /*
              * We have read the config file, now process the lines defining the
@@ -473,6 +620,61 @@ public class Config {
         return fieldSplit[1].trim();
     }
 
+    /**
+     * Read a field of the form "key = value" where the value is a
+     * non-negative integer
+     * 
+     * @param line
+     *            The line to be read
+     * @param fieldName
+     *            The field name to display in the exception if the line is
+     *            formatted badly
+     * @return The integer value
+     * @throws ConfigException
+     *             If the line is not of the form "key = value", or the value
+     *             is not a non-negative integer
+     */
+    private int readIntField(String line, String fieldName) throws ConfigException {
+        String value = readField(line, fieldName);
+        try {
+            int intValue = Integer.parseInt(value);
+            if (intValue >= 0) {
+                return intValue;
+            }
+        } catch (NumberFormatException e) {
+            /*
+             * Handled below
+             */
+        }
+        throw new ConfigException("The value of " + fieldName
+                + " must be a non-negative integer, but was \"" + value + "\"");
+    }
+
+    /**
+     * Read a field of the form "key = value" where the value is either "true"
+     * or "false"
+     * 
+     * @param line
+     *            The line to be read
+     * @param fieldName
+     *            The field name to display in the exception if the line is
+     *            formatted badly
+     * @return The boolean value
+     * @throws ConfigException
+     *             If the line is not of the form "key = value", or the value
+     *             is not "true" or "false"
+     */
+    private boolean readBooleanField(String line, String fieldName) throws ConfigException {
+        String value = readField(line, fieldName);
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        } else if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new ConfigException("The value of " + fieldName
+                + " must be \"true\" or \"false\", but was \"" + value + "\"");
+    }
+
     /**
      * @return The path to the data
      */
@@ -480,6 +682,14 @@ public class Config {
         return path;
     }
 
+    /**
+     * @return Whether the path refers to an {@link ImagePack} rather than a
+     *         directory
+     */
+    public boolean isPack() {
+        return pack;
+    }
+
     /**
      * @return The name format of the images
      */
@@ -501,6 +711,14 @@ public class Config {
         return selectableDimensions;
     }
 
+    /**
+     * @return The {@link CoordinateSpace} converting between the values of the
+     *         selectable {@link Dimension}s and their indices
+     */
+    public CoordinateSpace getCoordinateSpace() {
+        return coordinateSpace;
+    }
+
     /**
      * @return A 2D array containing the values of the non-selectable dimension
      *         and where on the screen they should be plotted
@@ -539,6 +757,100 @@ public class Config {
         return colWidths;
     }
 
+    /**
+     * @return The maximum size of the decoded image cache, in megabytes
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @return The maximum number of neighbouring images to load in advance
+     *         for each selection
+     */
+    public int getPrefetchSize() {
+        return prefetchSize;
+    }
+
+    /**
+     * @return The directory to store downscaled copies of images in, or
+     *         <code>null</code> if they should not be stored
+     */
+    public String getDiskCachePath() {
+        return diskCachePath;
+    }
+
+    /**
+     * @return The maximum size of the downscaled image cache, in megabytes
+     */
+    public int getDiskCacheSize() {
+        return diskCacheSize;
+    }
+
+    /**
+     * @return Whether to watch the data path for images being added or removed
+     */
+    public boolean isWatchData() {
+        return watchData;
+    }
+
+    /**
+     * @return Whether to store the image index between runs, so that the data
+     *         path does not need to be scanned in full at startup
+     */
+    public boolean isPersistIndex() {
+        return persistIndex;
+    }
+
+    /**
+     * @return The location of the file storing the image index, which is in
+     *         the same directory as the config file
+     */
+    public File getIndexFile() {
+        return new File(configFile.getAbsoluteFile().getParentFile(), INDEX_FILE_NAME);
+    }
+
+    /**
+     * @return The number of threads to use when scanning the data path for
+     *         images
+     */
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    /**
+     * @return The interval between logging the performance metrics, in
+     *         seconds, or 0 if they should not be logged
+     */
+    public int getMetricsLogInterval() {
+        return metricsLogInterval;
+    }
+
+    /**
+     * @return The time the JavaFX application thread may be blocked for before
+     *         it is reported, in milliseconds, or 0 if it should not be watched
+     */
+    public int getStallThreshold() {
+        return stallThreshold;
+    }
+
+    /**
+     * @return The number of frames to load ahead of the current one when
+     *         playing through a dimension
+     */
+    public int getPlaybackBuffer() {
+        return playbackBuffer;
+    }
+
+    /**
+     * @return The time to wait for all of the images of a selection to load so
+     *         that they can be shown together, in milliseconds, or 0 if each
+     *         image should be shown as soon as it has loaded
+     */
+    public int getSwapBudget() {
+        return swapBudget;
+    }
+
     /**
      * A class used to indicate a problem or inconsistency in the config file
      *
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over every combination of values of a set of {@link Dimension}s,
+ * without generating them all up front.
+ * 
+ * The combinations are treated as a mixed-radix number, with one digit per
+ * dimension, which is incremented on each step. The last dimension varies
+ * fastest. Each call to {@link CoordinateIterator#next()} returns the same
+ * array of value indices, updated in place, so the memory used does not depend
+ * on the number of combinations.
+ *
+ * @author Guy Griffiths
+ */
+public class CoordinateIterator implements Iterator<int[]> {
+    /** The {@link Dimension}s being iterated over */
+    private final List<Dimension> dimensions;
+    /** The number of values of each dimension */
+    private final int[] radices;
+    /** The indices of the values in the current combination */
+    private final int[] current;
+    /** Whether there are any combinations left */
+    private boolean more;
+    /** Whether the current combination has been returned already */
+    private boolean returned = false;
+
+    /**
+     * @param dimensions
+     *            The {@link Dimension}s to iterate over
+     */
+    public CoordinateIterator(List<Dimension> dimensions) {
+        this.dimensions = dimensions;
+        radices = new int[dimensions.size()];
+        current = new int[dimensions.size()];
+        /*
+         * There are no combinations if there are no dimensions, or any
+         * dimension has no values
+         */
+        more = radices.length > 0;
+        for (int i = 0; i < radices.length; i++) {
+            radices[i] = dimensions.get(i).getValues().size();
+            more &= radices[i] > 0;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (returned) {
+            advance();
+            returned = false;
+        }
+        return more;
+    }
+
+    /**
+     * @return The indices of the values in the next combination. The same
+     *         array is returned on each call, and should not be modified
+     */
+    @Override
+    public int[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        returned = true;
+        return current;
+    }
+
+    /**
+     * Moves on to the next combination
+     */
+    private void advance() {
+        for (int i = current.length - 1; i >= 0; i--) {
+            if (++current[i] < radices[i]) {
+                return;
+            }
+            current[i] = 0;
+        }
+        /*
+         * We've carried past the first dimension, so every combination has
+         * been visited
+         */
+        more = false;
+    }
+
+    /**
+     * Gets the values of the most recently returned combination
+     * 
+     * @param values
+     *            An array with one element per dimension, which will be filled
+     *            with the values
+     * @return The same array
+     */
+    public String[] getValues(String[] values) {
+        for (int i = 0; i < current.length; i++) {
+            values[i] = dimensions.get(i).getValues().get(current[i]);
+        }
+        return values;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
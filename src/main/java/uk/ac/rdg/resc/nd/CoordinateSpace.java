@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts between the values of a set of {@link Dimension}s and their
+ * indices, and packs a combination of indices into a single <code>long</code>
+ * key.
+ * 
+ * Keys are a mixed-radix number, with one digit per dimension holding the
+ * index of its value plus one, so that a digit of zero means that the
+ * dimension has no value. A key can be used in place of an array of values in
+ * maps and sets, and the value of one dimension can be changed without
+ * unpacking the others. If there are too many combinations of values for the
+ * keys to fit in a <code>long</code>, the space is not packable and keys
+ * cannot be used.
+ *
+ * @author Guy Griffiths
+ */
+public class CoordinateSpace {
+    /** The values of each dimension */
+    private final List<List<String>> values = new ArrayList<>();
+    /**
+     * For each dimension, a {@link Map} of value to its index, or
+     * <code>null</code> if its values can find their own indices quickly
+     */
+    private final List<Map<String, Integer>> indices = new ArrayList<>();
+    /** The number of possible digits for each dimension */
+    private final long[] bases;
+    /** The amount each dimension's digit is multiplied by in a key */
+    private final long[] radices;
+    /** Whether every combination of values has a key */
+    private final boolean packable;
+
+    /**
+     * @param dimensions
+     *            The {@link Dimension}s, in the order of their indices in a
+     *            key
+     */
+    public CoordinateSpace(List<Dimension> dimensions) {
+        bases = new long[dimensions.size()];
+        radices = new long[dimensions.size()];
+        long radix = 1L;
+        boolean fits = true;
+        for (int i = 0; i < dimensions.size(); i++) {
+            List<String> dimValues = dimensions.get(i).getValues();
+            values.add(dimValues);
+            if (dimValues instanceof DimensionValues) {
+                indices.add(null);
+            } else {
+                Map<String, Integer> valueIndices = new HashMap<>();
+                for (int j = dimValues.size() - 1; j >= 0; j--) {
+                    valueIndices.put(dimValues.get(j), j);
+                }
+                indices.add(valueIndices);
+            }
+            bases[i] = dimValues.size() + 1L;
+            radices[i] = radix;
+            if (fits) {
+                try {
+                    radix = Math.multiplyExact(radix, bases[i]);
+                } catch (ArithmeticException e) {
+                    fits = false;
+                }
+            }
+        }
+        packable = fits;
+    }
+
+    /**
+     * @return Whether every combination of values can be packed into a key.
+     *         If not, {@link CoordinateSpace#pack(int[])} and
+     *         {@link CoordinateSpace#with(long, int, int)} cannot be used.
+     */
+    public boolean isPackable() {
+        return packable;
+    }
+
+    /**
+     * @return The number of dimensions
+     */
+    public int getNDimensions() {
+        return bases.length;
+    }
+
+    /**
+     * @param dimension
+     *            The index of the dimension
+     * @return The number of values the dimension has
+     */
+    public int size(int dimension) {
+        return values.get(dimension).size();
+    }
+
+    /**
+     * @param dimension
+     *            The index of the dimension
+     * @param value
+     *            A value of the dimension
+     * @return The index of the value, or -1 if it is <code>null</code> or not
+     *         a value of the dimension
+     */
+    public int indexOf(int dimension, String value) {
+        if (value == null) {
+            return -1;
+        }
+        Map<String, Integer> valueIndices = indices.get(dimension);
+        if (valueIndices == null) {
+            return values.get(dimension).indexOf(value);
+        }
+        Integer index = valueIndices.get(value);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @param dimension
+     *            The index of the dimension
+     * @param index
+     *            The index of a value, or -1
+     * @return The value, or <code>null</code> if the index is -1
+     */
+    public String valueOf(int dimension, int index) {
+        return index < 0 ? null : values.get(dimension).get(index);
+    }
+
+    /**
+     * @param coords
+     *            A value for each dimension, any of which may be
+     *            <code>null</code>
+     * @return The index of each value, with -1 for <code>null</code>s and
+     *         values which are not defined
+     */
+    public int[] indicesOf(String[] coords) {
+        int[] coordIndices = new int[bases.length];
+        for (int i = 0; i < bases.length; i++) {
+            coordIndices[i] = indexOf(i, coords[i]);
+        }
+        return coordIndices;
+    }
+
+    /**
+     * @param coordIndices
+     *            The index of a value for each dimension, or -1
+     * @return The values, with <code>null</code> where the index is -1
+     */
+    public String[] valuesOf(int[] coordIndices) {
+        String[] coords = new String[bases.length];
+        for (int i = 0; i < bases.length; i++) {
+            coords[i] = valueOf(i, coordIndices[i]);
+        }
+        return coords;
+    }
+
+    /**
+     * Packs a combination of indices into a key
+     * 
+     * @param coordIndices
+     *            The index of a value for each dimension, or -1 for no value
+     * @return The key
+     * @throws IllegalStateException
+     *             If the space is not packable
+     */
+    public long pack(int[] coordIndices) {
+        checkPackable();
+        long key = 0L;
+        for (int i = 0; i < bases.length; i++) {
+            if (coordIndices[i] < -1 || coordIndices[i] >= bases[i] - 1) {
+                throw new IndexOutOfBoundsException("Index " + coordIndices[i]
+                        + " of dimension " + i + ", size " + (bases[i] - 1));
+            }
+            key += (coordIndices[i] + 1L) * radices[i];
+        }
+        return key;
+    }
+
+    /**
+     * @param key
+     *            A key created by {@link CoordinateSpace#pack(int[])}
+     * @param dimension
+     *            The index of the dimension
+     * @return The index of the dimension's value in the key, or -1 for no
+     *         value
+     */
+    public int get(long key, int dimension) {
+        return (int) (key / radices[dimension] % bases[dimension]) - 1;
+    }
+
+    /**
+     * @param key
+     *            A key created by {@link CoordinateSpace#pack(int[])}
+     * @param dimension
+     *            The index of the dimension to change
+     * @param index
+     *            The index of the dimension's new value, or -1 for no value
+     * @return A key with the same values as the given one, apart from the
+     *         given dimension
+     */
+    public long with(long key, int dimension, int index) {
+        checkPackable();
+        if (index < -1 || index >= bases[dimension] - 1) {
+            throw new IndexOutOfBoundsException("Index " + index + " of dimension "
+                    + dimension + ", size " + (bases[dimension] - 1));
+        }
+        return key + (long) (index - get(key, dimension)) * radices[dimension];
+    }
+
+    /**
+     * @throws IllegalStateException
+     *             If the space is not packable
+     */
+    private void checkPackable() {
+        if (!packable) {
+            throw new IllegalStateException(
+                    "There are too many combinations of dimension values to pack into a key");
+        }
+    }
+}
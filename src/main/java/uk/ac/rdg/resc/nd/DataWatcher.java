@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the data path for images being added or removed, and keeps an
+ * {@link AvailabilityIndex} up to date.
+ * 
+ * Changes are gathered together until no more have happened for a short time,
+ * so that a process writing many images at once causes a single update.
+ * 
+ * Note that on network filesystems, changes made from other machines may not be
+ * reported.
+ *
+ * @author Guy Griffiths
+ */
+public class DataWatcher {
+    /** How long to wait for further changes before applying a batch */
+    private static final long QUIET_MS = 1000L;
+    /** The longest to hold onto changes whilst they are still arriving */
+    private static final long MAX_DELAY_MS = 10000L;
+
+    /** The root of the data */
+    private final File dataPath;
+    /** The compiled {@link NameFormat} which images must match */
+    private final NameFormat nameFormat;
+    /** The {@link AvailabilityIndex} to keep up to date */
+    private final AvailabilityIndex index;
+    /** The {@link DirectoryScanner} used to scan new directories */
+    private final DirectoryScanner scanner;
+    /** Called after each batch of changes to the index */
+    private final Runnable onChange;
+    /** The {@link WatchService} which reports changes */
+    private final WatchService watchService;
+    /**
+     * The directories being watched, mapped to their paths relative to the
+     * data path
+     */
+    private final Map<WatchKey, String> watched = new HashMap<>();
+    /**
+     * The paths of the directories which have been registered, relative to the
+     * data path and ending with a "/". These are kept after their
+     * {@link WatchKey}s become invalid, so that a deleted path can be
+     * recognised as a directory.
+     */
+    private final Set<String> directories = new HashSet<>();
+    /** The thread which processes changes */
+    private final Thread thread;
+
+    /**
+     * Create a new {@link DataWatcher}. Call {@link DataWatcher#start()} to
+     * begin watching.
+     * 
+     * @param config
+     *            The {@link Config} defining the data path
+     * @param nameFormat
+     *            The compiled {@link NameFormat} which images must match
+     * @param index
+     *            The {@link AvailabilityIndex} to keep up to date
+     * @param onChange
+     *            Called (on the watching thread) after the index has been
+     *            changed
+     * @throws IOException
+     *             If the {@link WatchService} cannot be created
+     */
+    public DataWatcher(Config config, NameFormat nameFormat, AvailabilityIndex index,
+            Runnable onChange) throws IOException {
+        this.dataPath = new File(config.getPath());
+        this.nameFormat = nameFormat;
+        this.index = index;
+        this.scanner = new DirectoryScanner(config, nameFormat);
+        this.onChange = onChange;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "nd-data-watcher");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts watching the data path. The directories are registered on the
+     * watching thread, since listing a large tree can take a long time.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops watching the data path
+     */
+    public void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            /*
+             * Nothing more we can do
+             */
+        }
+    }
+
+    /**
+     * Registers a directory, and any subdirectories which can contain images,
+     * with the {@link WatchService}
+     * 
+     * @param relativeDir
+     *            The directory relative to the data path, either empty or
+     *            ending with a "/"
+     */
+    private void register(String relativeDir) {
+        int depth = nameFormat.getDepth();
+        for (int i = 0; i < relativeDir.length(); i++) {
+            if (relativeDir.charAt(i) == '/') {
+                depth--;
+            }
+        }
+        if (depth < 1) {
+            return;
+        }
+        File dir = new File(dataPath, relativeDir);
+        try {
+            WatchKey key = dir.toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watched.put(key, relativeDir);
+            directories.add(relativeDir);
+        } catch (IOException e) {
+            System.out.println("Cannot watch " + dir + " for new images: " + e.getMessage());
+            return;
+        }
+        if (depth > 1) {
+            String[] contents = dir.list();
+            if (contents != null) {
+                for (String name : contents) {
+                    if (new File(dir, name).isDirectory()) {
+                        register(relativeDir + name + "/");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers the directories to watch, then waits for changes, and applies
+     * them to the index in batches
+     */
+    private void watch() {
+        try {
+            register("");
+            while (true) {
+                /*
+                 * Wait for the first change, then gather any more which arrive
+                 * before things go quiet
+                 */
+                Set<String> changed = new LinkedHashSet<>();
+                boolean overflow = false;
+                WatchKey key = watchService.take();
+                long deadline = System.currentTimeMillis() + MAX_DELAY_MS;
+                while (key != null) {
+                    overflow |= gatherChanges(key, changed);
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    key = watchService.poll(Math.min(QUIET_MS, remaining), TimeUnit.MILLISECONDS);
+                }
+                if (overflow) {
+                    changed.clear();
+                    rescan();
+                    onChange.run();
+                } else if (applyChanges(changed)) {
+                    onChange.run();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            /*
+             * We've been stopped
+             */
+        }
+    }
+
+    /**
+     * Reads the events from a {@link WatchKey}
+     * 
+     * @param key
+     *            The {@link WatchKey} which has been signalled
+     * @param changed
+     *            The {@link Set} of paths (relative to the data path) to add
+     *            changed entries to
+     * @return <code>true</code> if events were lost, and a full rescan is
+     *         needed
+     */
+    private boolean gatherChanges(WatchKey key, Set<String> changed) {
+        String relativeDir = watched.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else if (relativeDir != null) {
+                changed.add(relativeDir + ((Path) event.context()).toString());
+            }
+        }
+        if (!key.reset()) {
+            /*
+             * The directory has gone
+             */
+            watched.remove(key);
+        }
+        return overflow;
+    }
+
+    /**
+     * Applies a batch of changes to the index
+     * 
+     * @param changed
+     *            The paths (relative to the data path) which have changed
+     * @return <code>true</code> if the index was modified
+     */
+    private boolean applyChanges(Set<String> changed) {
+        boolean modified = false;
+        for (String relativePath : changed) {
+            File file = new File(dataPath, relativePath);
+            if (file.isDirectory()) {
+                /*
+                 * A new directory. Watch it, and add anything which was
+                 * written to it before we started watching
+                 */
+                String relativeDir = relativePath + "/";
+                register(relativeDir);
+                for (Entry<String, String[]> image : scanner.scan(relativeDir).entrySet()) {
+                    modified |= index.add(image.getKey(), image.getValue());
+                }
+            } else if (file.exists()) {
+                String[] coords = nameFormat.parse(relativePath);
+                if (coords != null) {
+                    modified |= index.add(relativePath, coords);
+                }
+            } else if (index.remove(relativePath)) {
+                modified = true;
+            } else if (directories.contains(relativePath + "/")) {
+                /*
+                 * A directory which was being watched. It may have been moved
+                 * away as a whole, in which case nothing inside it is
+                 * reported, so remove all of its images.
+                 */
+                String relativeDir = relativePath + "/";
+                for (Iterator<String> it = directories.iterator(); it.hasNext();) {
+                    if (it.next().startsWith(relativeDir)) {
+                        it.remove();
+                    }
+                }
+                for (String image : index.getImages()) {
+                    if (image.startsWith(relativeDir)) {
+                        modified |= index.remove(image);
+                    }
+                }
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Rescans the entire data path, after changes have been lost
+     */
+    private void rescan() {
+        Map<String, String[]> found = scanner.scan();
+        for (String image : index.getImages()) {
+            if (!found.containsKey(image)) {
+                index.remove(image);
+            }
+        }
+        for (Entry<String, String[]> image : found.entrySet()) {
+            index.add(image.getKey(), image.getValue());
+        }
+        /*
+         * Pick up any new directories
+         */
+        directories.clear();
+        register("");
+    }
+}
@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+
+/**
+ * Shows where the images of one selection differ from those of another. Each
+ * {@link ImageView} is given a map of the differences between its two images:
+ * pixels which are the same are shown faded, and pixels which differ are shown
+ * in red, darker for larger differences.
+ * 
+ * The maps are computed on background threads. The cells are compared in
+ * parallel, and each is split into bands of rows which are also compared in
+ * parallel. The pixels of each cell are copied into arrays which are kept
+ * between comparisons, so comparing does not allocate anything per pixel.
+ * Images are compared at the size they are displayed, since that is all that
+ * can be seen.
+ * 
+ * Each call to {@link DifferenceRenderer#show(Map)} supersedes the previous
+ * one.
+ *
+ * @author Guy Griffiths
+ */
+public class DifferenceRenderer {
+    /** The number of rows below which a band is not split further */
+    private static final int BAND_ROWS = 64;
+    /** The colour of unchanged pixels is moved this far towards white */
+    private static final int FADE_SHIFT = 2;
+    /** The smallest amount of red used to show a changed pixel */
+    private static final int MIN_HIGHLIGHT = 64;
+    private static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat
+            .getIntArgbInstance();
+
+    /** The {@link ImageLoader} used to decode the images */
+    private final ImageLoader loader;
+    /** Runs the requests one at a time */
+    private final ExecutorService coordinator;
+    /** Compares the cells and bands in parallel */
+    private final ForkJoinPool pool;
+    /** The ID of the most recent request */
+    private final AtomicLong currentRequest = new AtomicLong(0L);
+    /**
+     * The pixel arrays for each cell. Only used by the coordinator thread and
+     * the tasks it is waiting for
+     */
+    private final Map<ImageView, Buffers> buffers = new HashMap<>();
+
+    /**
+     * @param loader
+     *            The {@link ImageLoader} used to decode the images
+     * @param nThreads
+     *            The number of threads to compare images with
+     */
+    public DifferenceRenderer(ImageLoader loader, int nThreads) {
+        this.loader = loader;
+        coordinator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nd-difference");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool = new ForkJoinPool(nThreads);
+    }
+
+    /**
+     * Compares pairs of images, and shows the differences in place of the
+     * images. This should be called from the JavaFX application thread.
+     * 
+     * @param cells
+     *            A {@link Map} of {@link ImageView} to the image it should
+     *            show (element 0) and the image to compare it with (element
+     *            1). If the first is <code>null</code>, the view is cleared.
+     *            If the second is <code>null</code>, every pixel is shown as
+     *            changed.
+     */
+    public void show(final Map<ImageView, ImageLoader.Request[]> cells) {
+        final long request = currentRequest.incrementAndGet();
+        coordinator.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (currentRequest.get() != request) {
+                    return;
+                }
+                final List<RecursiveAction> tasks = new ArrayList<>();
+                for (Entry<ImageView, ImageLoader.Request[]> cell : cells.entrySet()) {
+                    Buffers cellBuffers = buffers.get(cell.getKey());
+                    if (cellBuffers == null) {
+                        cellBuffers = new Buffers();
+                        buffers.put(cell.getKey(), cellBuffers);
+                    }
+                    tasks.add(new CellTask(request, cell.getKey(), cell.getValue()[0], cell
+                            .getValue()[1], cellBuffers));
+                }
+                pool.invoke(new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Abandons the most recent request, so that its differences are not shown
+     */
+    public void cancel() {
+        currentRequest.incrementAndGet();
+    }
+
+    /**
+     * Stops all comparisons
+     */
+    public void shutdown() {
+        cancel();
+        coordinator.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    /**
+     * Compares a range of rows of two images
+     * 
+     * @param current
+     *            The pixels of the image to show, as ARGB
+     * @param width
+     *            The width of the image to show
+     * @param previous
+     *            The pixels of the image to compare it with, as ARGB
+     * @param previousWidth
+     *            The width of the image to compare with
+     * @param previousHeight
+     *            The height of the image to compare with. Pixels outside it
+     *            are treated as transparent.
+     * @param out
+     *            The array to write the differences to, as ARGB, with the same
+     *            layout as the image to show
+     * @param y0
+     *            The first row to compare
+     * @param y1
+     *            The row after the last one to compare
+     */
+    static void difference(int[] current, int width, int[] previous, int previousWidth,
+            int previousHeight, int[] out, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            int previousRow = y * previousWidth;
+            for (int x = 0; x < width; x++) {
+                int a = current[row + x];
+                int b = x < previousWidth && y < previousHeight ? previous[previousRow + x] : 0;
+                if (a == b) {
+                    /*
+                     * Fade unchanged pixels towards white, so they give
+                     * context without drawing the eye
+                     */
+                    int grey = ((a >> 16 & 0xff) * 77 + (a >> 8 & 0xff) * 150
+                            + (a & 0xff) * 29) >> 8;
+                    grey = 255 - ((255 - grey) >> FADE_SHIFT);
+                    out[row + x] = 0xff000000 | grey << 16 | grey << 8 | grey;
+                } else {
+                    int diff = Math.abs((a >>> 24) - (b >>> 24))
+                            + Math.abs((a >> 16 & 0xff) - (b >> 16 & 0xff))
+                            + Math.abs((a >> 8 & 0xff) - (b >> 8 & 0xff))
+                            + Math.abs((a & 0xff) - (b & 0xff));
+                    int other = 255 - Math.min(255, MIN_HIGHLIGHT + diff);
+                    out[row + x] = 0xffff0000 | other << 8 | other;
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads and compares the images for one cell, then shows the result
+     */
+    private class CellTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long request;
+        private final ImageView view;
+        private final ImageLoader.Request current;
+        private final ImageLoader.Request previous;
+        private final Buffers cellBuffers;
+
+        public CellTask(long request, ImageView view, ImageLoader.Request current,
+                ImageLoader.Request previous, Buffers cellBuffers) {
+            this.request = request;
+            this.view = view;
+            this.current = current;
+            this.previous = previous;
+            this.cellBuffers = cellBuffers;
+        }
+
+        @Override
+        protected void compute() {
+            if (currentRequest.get() != request) {
+                return;
+            }
+            Image result = null;
+            Image currentImage = current == null ? null : loader.getImage(current);
+            if (currentImage != null && !currentImage.isError()) {
+                Image previousImage = previous == null ? null : loader.getImage(previous);
+                if (currentRequest.get() != request) {
+                    return;
+                }
+                result = compare(currentImage, previousImage);
+            }
+            final Image show = result;
+            Platform.runLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (currentRequest.get() == request) {
+                        view.setImage(show);
+                    }
+                }
+            });
+        }
+
+        private Image compare(Image currentImage, Image previousImage) {
+            final int width = (int) currentImage.getWidth();
+            int height = (int) currentImage.getHeight();
+            final int[] currentPixels = cellBuffers.current = ensureSize(cellBuffers.current,
+                    width * height);
+            currentImage.getPixelReader().getPixels(0, 0, width, height, FORMAT,
+                    currentPixels, 0, width);
+
+            int previousWidth = 0;
+            int previousHeight = 0;
+            int[] previousPixels = cellBuffers.previous;
+            if (previousImage != null && !previousImage.isError()) {
+                previousWidth = (int) previousImage.getWidth();
+                previousHeight = (int) previousImage.getHeight();
+                previousPixels = cellBuffers.previous = ensureSize(cellBuffers.previous,
+                        previousWidth * previousHeight);
+                previousImage.getPixelReader().getPixels(0, 0, previousWidth,
+                        previousHeight, FORMAT, previousPixels, 0, previousWidth);
+            }
+            int[] out = cellBuffers.out = ensureSize(cellBuffers.out, width * height);
+
+            invokeAll(new BandTask(currentPixels, width, previousPixels, previousWidth,
+                    previousHeight, out, 0, height));
+
+            WritableImage image = new WritableImage(width, height);
+            image.getPixelWriter().setPixels(0, 0, width, height, FORMAT, out, 0, width);
+            return image;
+        }
+    }
+
+    /**
+     * @return The array, or a new one if it is shorter than the given length
+     */
+    private static int[] ensureSize(int[] array, int length) {
+        return array != null && array.length >= length ? array : new int[length];
+    }
+
+    /**
+     * Compares a band of rows, splitting it in two if it is large
+     */
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] current;
+        private final int width;
+        private final int[] previous;
+        private final int previousWidth;
+        private final int previousHeight;
+        private final int[] out;
+        private final int y0;
+        private final int y1;
+
+        public BandTask(int[] current, int width, int[] previous, int previousWidth,
+                int previousHeight, int[] out, int y0, int y1) {
+            this.current = current;
+            this.width = width;
+            this.previous = previous;
+            this.previousWidth = previousWidth;
+            this.previousHeight = previousHeight;
+            this.out = out;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 <= BAND_ROWS) {
+                difference(current, width, previous, previousWidth, previousHeight, out, y0,
+                        y1);
+            } else {
+                int mid = (y0 + y1) >>> 1;
+                invokeAll(new BandTask(current, width, previous, previousWidth,
+                        previousHeight, out, y0, mid), new BandTask(current, width, previous,
+                        previousWidth, previousHeight, out, mid, y1));
+            }
+        }
+    }
+
+    /**
+     * The pixel arrays kept for a cell between comparisons
+     */
+    private static class Buffers {
+        private int[] current;
+        private int[] previous;
+        private int[] out;
+    }
+}
@@ -76,7 +76,9 @@ public class Dimension {
     }
 
     /**
-     * @return The valid values of the dimension
+     * @return The valid values of the dimension. When read from the config,
+     *         these are {@link DimensionValues}, which may compute ranges of
+     *         values as they are needed
      */
     public List<String> getValues() {
         return values;
@@ -0,0 +1,538 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.time.temporal.ChronoUnit;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The values of a {@link Dimension}, made up of individual values and ranges.
+ * 
+ * Ranges of numbers or dates are not stored; each value is computed from its
+ * index when it is needed, and the index of a value is computed from the value
+ * itself. This means a dimension with many thousands of values (e.g. daily
+ * dates) can be declared in a single line of the config, and takes no more
+ * memory than one with a few.
+ * 
+ * Values can be added to the end with {@link DimensionValues#add(Object)} and
+ * {@link DimensionValues#addRange(Range)}. The index of any value is found in
+ * constant time.
+ *
+ * @author Guy Griffiths
+ */
+public class DimensionValues extends AbstractList<String> implements RandomAccess {
+    /** A range of integers, e.g. "000..240 step 6" */
+    private static final Pattern NUMBER_RANGE = Pattern
+            .compile("(-?[0-9]+)\\s*\\.\\.\\s*(-?[0-9]+)(?:\\s+step\\s+([0-9]+))?");
+    /** A range of dates, e.g. "2000-01-01..2000-12-31 step 1d format yyyyMMdd" */
+    private static final Pattern DATE_RANGE = Pattern
+            .compile("([0-9]{4}-[0-9]{2}-[0-9]{2})\\s*\\.\\.\\s*([0-9]{4}-[0-9]{2}-[0-9]{2})"
+                    + "(?:\\s+step\\s+([0-9]+)([dwmy]))?(?:\\s+format\\s+(.+))?");
+
+    /** The parts of the list, each either a {@link Range} or a list of values */
+    private final List<List<String>> segments = new ArrayList<>();
+    /** The index in the whole list of the first value in each segment */
+    private final List<Integer> offsets = new ArrayList<>();
+    /** The index of each individually added value */
+    private final Map<String, Integer> explicitIndices = new HashMap<>();
+    /** The total number of values */
+    private int size = 0;
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        int segment = segments.size() - 1;
+        while (offsets.get(segment) > index) {
+            segment--;
+        }
+        return segments.get(segment).get(index - offsets.get(segment));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a single value to the end of the list
+     */
+    @Override
+    public void add(int index, String value) {
+        if (index != size) {
+            throw new UnsupportedOperationException("Values can only be added to the end");
+        }
+        List<String> last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last == null || last instanceof Range) {
+            last = new ArrayList<>();
+            offsets.add(size);
+            segments.add(last);
+        }
+        last.add(value);
+        if (!explicitIndices.containsKey(value)) {
+            explicitIndices.put(value, size);
+        }
+        size++;
+        modCount++;
+    }
+
+    /**
+     * Adds a range of values to the end of the list
+     * 
+     * @param range
+     *            The {@link Range} to add
+     */
+    public void addRange(Range range) {
+        offsets.add(size);
+        segments.add(range);
+        size += range.size();
+        modCount++;
+    }
+
+    @Override
+    public int indexOf(Object value) {
+        int index = -1;
+        Integer explicit = explicitIndices.get(value);
+        if (explicit != null) {
+            index = explicit;
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            if (index >= 0 && offsets.get(i) > index) {
+                break;
+            }
+            if (segments.get(i) instanceof Range) {
+                int inRange = segments.get(i).indexOf(value);
+                if (inRange >= 0) {
+                    return offsets.get(i) + inRange;
+                }
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public boolean contains(Object value) {
+        return indexOf(value) >= 0;
+    }
+
+    /**
+     * @return Whether any of the values are in {@link Range}s
+     */
+    public boolean hasRanges() {
+        for (List<String> segment : segments) {
+            if (segment instanceof Range) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The values which were added individually, rather than in ranges
+     */
+    public List<String> getExplicitValues() {
+        List<String> values = new ArrayList<>();
+        for (List<String> segment : segments) {
+            if (!(segment instanceof Range)) {
+                values.addAll(segment);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return Regular expressions matching the values in each {@link Range}
+     */
+    public List<String> getRangePatterns() {
+        List<String> patterns = new ArrayList<>();
+        for (List<String> segment : segments) {
+            if (segment instanceof Range) {
+                patterns.add(((Range) segment).getPattern());
+            }
+        }
+        return patterns;
+    }
+
+    /**
+     * Describes the values without listing those in ranges, so that a change
+     * to the values can be detected cheaply
+     * 
+     * @return One entry for each value added individually, and one for each
+     *         {@link Range}, in order
+     */
+    public List<String> getDeclaration() {
+        List<String> declaration = new ArrayList<>();
+        for (List<String> segment : segments) {
+            if (segment instanceof Range) {
+                declaration.add("range " + ((Range) segment).getDeclaration());
+            } else {
+                for (String value : segment) {
+                    declaration.add("value " + value);
+                }
+            }
+        }
+        return declaration;
+    }
+
+    /**
+     * Parses a range declaration from the config. These are of the forms:
+     * 
+     * <ul>
+     * <li><code>start..end [step n]</code> for integers. If the start has
+     * leading zeros, all values are padded with zeros to the same length.</li>
+     * <li><code>yyyy-mm-dd..yyyy-mm-dd [step n{d|w|m|y}] [format pattern]</code>
+     * for dates, where the step is in days, weeks, months or years (default 1
+     * day), and the format is a {@link DateTimeFormatter} pattern (default
+     * <code>yyyy-MM-dd</code>).</li>
+     * </ul>
+     * 
+     * @param line
+     *            The line from the config
+     * @return The {@link Range}, or <code>null</code> if the line does not
+     *         declare one
+     * @throws IllegalArgumentException
+     *             If the line declares a range which is not valid
+     */
+    public static Range parseRange(String line) {
+        Matcher m = NUMBER_RANGE.matcher(line);
+        if (m.matches()) {
+            return new NumberRange(m.group(1), m.group(2), m.group(3) == null ? 1L : Long
+                    .parseLong(m.group(3)));
+        }
+        m = DATE_RANGE.matcher(line);
+        if (m.matches()) {
+            int step = m.group(3) == null ? 1 : Integer.parseInt(m.group(3));
+            ChronoUnit unit = ChronoUnit.DAYS;
+            if (m.group(4) != null) {
+                switch (m.group(4)) {
+                case "w":
+                    unit = ChronoUnit.WEEKS;
+                    break;
+                case "m":
+                    unit = ChronoUnit.MONTHS;
+                    break;
+                case "y":
+                    unit = ChronoUnit.YEARS;
+                    break;
+                default:
+                    unit = ChronoUnit.DAYS;
+                }
+            }
+            try {
+                return new DateRange(LocalDate.parse(m.group(1)), LocalDate.parse(m.group(2)),
+                        step, unit, m.group(5) == null ? "yyyy-MM-dd" : m.group(5).trim());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid date in range \"" + line + "\"");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A range of values which are computed from their index
+     */
+    public static abstract class Range extends AbstractList<String> implements RandomAccess {
+        /**
+         * @return A regular expression matching every value in the range (and
+         *         possibly others)
+         */
+        public abstract String getPattern();
+
+        /**
+         * @return A description of the range which differs if any of its
+         *         values do
+         */
+        public abstract String getDeclaration();
+
+        @Override
+        public boolean contains(Object value) {
+            return indexOf(value) >= 0;
+        }
+
+        /**
+         * @return A regular expression matching the given value and others of
+         *         the same shape: runs of digits and of letters can be
+         *         replaced by any others of the same length
+         */
+        static String shapeOf(String value) {
+            StringBuilder pattern = new StringBuilder();
+            int i = 0;
+            while (i < value.length()) {
+                char c = value.charAt(i);
+                int j = i + 1;
+                if (Character.isDigit(c) || Character.isLetter(c)) {
+                    boolean digit = Character.isDigit(c);
+                    while (j < value.length()
+                            && (digit ? Character.isDigit(value.charAt(j)) : Character
+                                    .isLetter(value.charAt(j)))) {
+                        j++;
+                    }
+                    pattern.append(digit ? "[0-9]" : "\\p{L}").append('{').append(j - i)
+                            .append('}');
+                } else {
+                    pattern.append(Pattern.quote(String.valueOf(c)));
+                }
+                i = j;
+            }
+            return pattern.toString();
+        }
+    }
+
+    /**
+     * Integers from a start to an end value, optionally padded with zeros
+     */
+    public static class NumberRange extends Range {
+        private final long start;
+        private final long step;
+        private final int size;
+        /** The minimum number of digits, or 0 for no padding */
+        private final int width;
+
+        /**
+         * @param start
+         *            The first value. If this has leading zeros, all values
+         *            are padded to the same number of digits.
+         * @param end
+         *            The last value. This is only included if it is a whole
+         *            number of steps from the start.
+         * @param step
+         *            The difference between each value
+         */
+        public NumberRange(String start, String end, long step) {
+            if (step < 1) {
+                throw new IllegalArgumentException("The step of a range must be at least 1");
+            }
+            this.start = Long.parseLong(start);
+            this.step = step;
+            long last = Long.parseLong(end);
+            if (last < this.start) {
+                throw new IllegalArgumentException(
+                        "The end of a range must not be before its start");
+            }
+            long count = (last - this.start) / step + 1;
+            if (count > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many values in range " + start + ".."
+                        + end);
+            }
+            this.size = (int) count;
+            String digits = start.startsWith("-") ? start.substring(1) : start;
+            this.width = digits.length() > 1 && digits.startsWith("0") ? digits.length() : 0;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return format(start + index * step);
+        }
+
+        private String format(long value) {
+            String digits = Long.toString(Math.abs(value));
+            StringBuilder formatted = new StringBuilder(width + 1);
+            if (value < 0) {
+                formatted.append('-');
+            }
+            for (int i = digits.length(); i < width; i++) {
+                formatted.append('0');
+            }
+            return formatted.append(digits).toString();
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int indexOf(Object value) {
+            if (!(value instanceof String)) {
+                return -1;
+            }
+            long number;
+            try {
+                number = Long.parseLong((String) value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            if (number < start || (number - start) % step != 0
+                    || (number - start) / step >= size) {
+                return -1;
+            }
+            int index = (int) ((number - start) / step);
+            /*
+             * Only accept the value as we would format it
+             */
+            return value.equals(get(index)) ? index : -1;
+        }
+
+        @Override
+        public int lastIndexOf(Object value) {
+            return indexOf(value);
+        }
+
+        @Override
+        public String getDeclaration() {
+            return "number " + start + " " + step + " " + size + " " + width;
+        }
+
+        @Override
+        public String getPattern() {
+            String sign = start < 0 ? "-?" : "";
+            if (width == 0) {
+                return sign + "[0-9]+";
+            }
+            return sign + "[0-9]{" + width + ",}";
+        }
+    }
+
+    /**
+     * Dates from a start to an end date, at a fixed number of days, weeks,
+     * months or years apart
+     */
+    public static class DateRange extends Range {
+        private final LocalDate start;
+        private final int step;
+        private final ChronoUnit unit;
+        private final int size;
+        private final DateTimeFormatter formatter;
+        /** The pattern of the formatter */
+        private final String format;
+
+        /**
+         * @param start
+         *            The first date
+         * @param end
+         *            The last date. This is only included if it is a whole
+         *            number of steps from the start.
+         * @param step
+         *            The number of units between each date
+         * @param unit
+         *            The unit of the step
+         * @param format
+         *            The {@link DateTimeFormatter} pattern of the values
+         */
+        public DateRange(LocalDate start, LocalDate end, int step, ChronoUnit unit,
+                String format) {
+            if (step < 1) {
+                throw new IllegalArgumentException("The step of a range must be at least 1");
+            }
+            if (end.isBefore(start)) {
+                throw new IllegalArgumentException(
+                        "The end of a range must not be before its start");
+            }
+            this.start = start;
+            this.step = step;
+            this.unit = unit;
+            this.size = (int) (unit.between(start, end) / step + 1);
+            this.format = format;
+            /*
+             * Formats without a day or month can still be parsed back to a
+             * date in the range
+             */
+            this.formatter = new DateTimeFormatterBuilder().appendPattern(format)
+                    .parseDefaulting(ChronoField.MONTH_OF_YEAR, start.getMonthValue())
+                    .parseDefaulting(ChronoField.DAY_OF_MONTH, start.getDayOfMonth())
+                    .toFormatter(Locale.ROOT);
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return formatter.format(start.plus((long) index * step, unit));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int indexOf(Object value) {
+            if (!(value instanceof String)) {
+                return -1;
+            }
+            LocalDate date;
+            try {
+                date = LocalDate.parse((String) value, formatter);
+            } catch (DateTimeParseException e) {
+                return -1;
+            }
+            long steps = unit.between(start, date) / step;
+            /*
+             * Adding months to the end of a month may land on an earlier day,
+             * which counts as one step fewer
+             */
+            for (long index = steps; index <= steps + 1; index++) {
+                if (index >= 0 && index < size && value.equals(get((int) index))) {
+                    return (int) index;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int lastIndexOf(Object value) {
+            return indexOf(value);
+        }
+
+        @Override
+        public String getDeclaration() {
+            return "date " + start + " " + step + " " + unit + " " + size + " " + format;
+        }
+
+        @Override
+        public String getPattern() {
+            /*
+             * Month and day names vary in length, so only use the exact shape
+             * if the first and last values agree
+             */
+            String first = shapeOf(get(0));
+            if (first.equals(shapeOf(get(size - 1))) && !first.contains("\\p{L}")) {
+                return first;
+            }
+            return first.replaceAll("\\{[0-9]+\\}", "+");
+        }
+    }
+}
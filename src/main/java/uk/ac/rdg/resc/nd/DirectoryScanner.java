@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Discovers which images exist by walking the data path once and matching the
+ * name of each file against the {@link NameFormat}.
+ * 
+ * The cost of this is proportional to the number of files present, rather than
+ * the number of possible combinations of dimension values. Since the time
+ * taken is mostly spent waiting for directory listings (particularly on
+ * network storage), subdirectories are listed in parallel using a
+ * {@link ForkJoinPool}, and the names in large directories are matched in
+ * parallel batches.
+ *
+ * @author Guy Griffiths
+ */
+public class DirectoryScanner {
+    /** The number of names matched in a single task */
+    private static final int PARSE_BATCH = 1024;
+
+    /** The root of the data */
+    private final File dataPath;
+    /** The {@link NameFormat} which images must match */
+    private final NameFormat nameFormat;
+    /** The number of threads to scan with */
+    private final int parallelism;
+    /** Notified as directories are scanned. May be <code>null</code> */
+    private final ProgressListener listener;
+
+    /** The number of directories listed in the current scan */
+    private final AtomicLong dirsScanned = new AtomicLong(0L);
+    /** The number of images found in the current scan */
+    private final AtomicLong imagesFound = new AtomicLong(0L);
+
+    /**
+     * @param config
+     *            The {@link Config} defining the data path and number of
+     *            threads to scan with
+     * @param nameFormat
+     *            The compiled {@link NameFormat} which images must match
+     */
+    public DirectoryScanner(Config config, NameFormat nameFormat) {
+        this(config, nameFormat, null);
+    }
+
+    /**
+     * @param config
+     *            The {@link Config} defining the data path and number of
+     *            threads to scan with
+     * @param nameFormat
+     *            The compiled {@link NameFormat} which images must match
+     * @param listener
+     *            A {@link ProgressListener} to notify as directories are
+     *            scanned, or <code>null</code>
+     */
+    public DirectoryScanner(Config config, NameFormat nameFormat, ProgressListener listener) {
+        this.dataPath = new File(config.getPath());
+        this.nameFormat = nameFormat;
+        this.parallelism = config.getScanThreads();
+        this.listener = listener;
+    }
+
+    /**
+     * Scans the data path for images
+     * 
+     * @return A {@link Map} of the path of each image found (relative to the
+     *         data path) to its dimension values, as returned by
+     *         {@link NameFormat#parse(String)}
+     */
+    public Map<String, String[]> scan() {
+        return scan("");
+    }
+
+    /**
+     * Scans part of the data path for images
+     * 
+     * @param relativeDir
+     *            The directory to scan, relative to the data path. This should
+     *            either be empty or end with a "/"
+     * @return A {@link Map} of the path of each image found (relative to the
+     *         data path) to its dimension values, as returned by
+     *         {@link NameFormat#parse(String)}
+     */
+    public Map<String, String[]> scan(String relativeDir) {
+        Map<String, String[]> found = new ConcurrentHashMap<>();
+        int depth = nameFormat.getDepth();
+        for (int i = 0; i < relativeDir.length(); i++) {
+            if (relativeDir.charAt(i) == '/') {
+                depth--;
+            }
+        }
+        if (depth > 0) {
+            dirsScanned.set(0L);
+            imagesFound.set(0L);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new ScanTask(new File(dataPath, relativeDir), relativeDir, depth,
+                        found, false));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds any of the given names which match the name format to the results
+     * 
+     * @param names
+     *            The names to match, relative to the data path
+     * @param found
+     *            The {@link Map} to add images to
+     */
+    private void parseNames(List<String> names, Map<String, String[]> found) {
+        for (String relativePath : names) {
+            String[] coords = nameFormat.parse(relativePath);
+            if (coords != null) {
+                found.put(relativePath, coords);
+                imagesFound.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Scans a single directory, forking tasks for its subdirectories
+     */
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+        private final String prefix;
+        private final int depth;
+        private final Map<String, String[]> found;
+        private final boolean mayBeImage;
+
+        /**
+         * @param dir
+         *            The directory to list
+         * @param prefix
+         *            The path of the directory relative to the data path,
+         *            either empty or ending with a "/"
+         * @param depth
+         *            The maximum number of path segments remaining
+         * @param found
+         *            The {@link Map} to add images to
+         * @param mayBeImage
+         *            Whether this may turn out to be an image rather than a
+         *            directory
+         */
+        public ScanTask(File dir, String prefix, int depth, Map<String, String[]> found,
+                boolean mayBeImage) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.depth = depth;
+            this.found = found;
+            this.mayBeImage = mayBeImage;
+        }
+
+        @Override
+        protected void compute() {
+            String[] contents = dir.list();
+            if (contents == null) {
+                /*
+                 * Not a directory, or it cannot be read
+                 */
+                if (mayBeImage) {
+                    List<String> names = new ArrayList<>();
+                    names.add(prefix.substring(0, prefix.length() - 1));
+                    parseNames(names, found);
+                }
+                return;
+            }
+
+            List<RecursiveAction> subtasks = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (String name : contents) {
+                String relativePath = prefix + name;
+                if (depth > 1) {
+                    /*
+                     * Entries above the deepest level of the name format are
+                     * usually directories. Rather than checking each one here,
+                     * we let the subtask try to list it in parallel, and treat
+                     * it as a possible image if that fails
+                     */
+                    subtasks.add(new ScanTask(new File(dir, name), relativePath + "/",
+                            depth - 1, found, true));
+                } else {
+                    names.add(relativePath);
+                }
+            }
+            for (int i = 0; i < names.size(); i += PARSE_BATCH) {
+                final List<String> batch = names.subList(i,
+                        Math.min(i + PARSE_BATCH, names.size()));
+                subtasks.add(new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void compute() {
+                        parseNames(batch, found);
+                    }
+                });
+            }
+
+            long dirs = dirsScanned.incrementAndGet();
+            if (listener != null) {
+                listener.progress(dirs, imagesFound.get());
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    /**
+     * Receives progress updates during a scan. This will be called from the
+     * scanning threads.
+     */
+    public interface ProgressListener {
+        /**
+         * @param directories
+         *            The number of directories scanned so far
+         * @param images
+         *            The number of images found so far
+         */
+        public void progress(long directories, long images);
+    }
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.control.Label;
+
+/**
+ * Watches the JavaFX application thread for stalls, i.e. anything which stops
+ * it from rendering frames for longer than a threshold.
+ * 
+ * An {@link AnimationTimer} records the time of every pulse, and a background
+ * thread checks that pulses are still arriving. If the application thread has
+ * been blocked for longer than the threshold, its stack trace is written to
+ * the console while it is still blocked, so that the code responsible can be
+ * found. The frame times and the number of images waiting to load can also be
+ * shown in an overlay.
+ *
+ * @author Guy Griffiths
+ */
+public class FxWatchdog {
+    /** The minimum time between overlay updates, in nanoseconds */
+    private static final long OVERLAY_UPDATE_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /** The length of a stall which is reported, in nanoseconds */
+    private final long thresholdNanos;
+    /** The {@link ImageLoader} whose pending loads are shown in the overlay */
+    private final ImageLoader loader;
+    /** The intervals between frames */
+    private final LatencyHistogram frameTimes = new LatencyHistogram();
+    /** The number of stalls which have been reported */
+    private final AtomicLong stalls = new AtomicLong(0L);
+    /** Shows the recent frame times */
+    private final Label overlay;
+    /** Called on the application thread on every pulse */
+    private final AnimationTimer timer;
+    /** Checks for stalls in the background */
+    private final Thread watcher;
+
+    /** The time of the most recent pulse, from {@link System#nanoTime()} */
+    private volatile long lastPulse;
+    /** The JavaFX application thread */
+    private volatile Thread fxThread = null;
+    private volatile boolean running = false;
+
+    /*
+     * These are only used on the application thread
+     */
+    private long lastFrame = 0L;
+    private long lastOverlayUpdate = 0L;
+    private long windowFrames = 0L;
+    private long windowTotal = 0L;
+    private long windowMax = 0L;
+
+    /**
+     * @param thresholdMillis
+     *            The length of time the application thread must be blocked
+     *            for to report a stall, in milliseconds
+     * @param loader
+     *            The {@link ImageLoader} whose pending loads are shown in the
+     *            overlay
+     */
+    public FxWatchdog(int thresholdMillis, ImageLoader loader) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.loader = loader;
+
+        overlay = new Label();
+        overlay.getStyleClass().add("nd-overlay");
+        overlay.setMouseTransparent(true);
+        overlay.setVisible(false);
+
+        timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                pulse(now);
+            }
+        };
+
+        final long checkMillis = Math.max(10, thresholdMillis / 4);
+        watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch(checkMillis);
+            }
+        }, "nd-fx-watchdog");
+        watcher.setDaemon(true);
+    }
+
+    /**
+     * Starts watching. This must be called on the JavaFX application thread.
+     */
+    public void start() {
+        fxThread = Thread.currentThread();
+        lastPulse = System.nanoTime();
+        running = true;
+        timer.start();
+        watcher.start();
+    }
+
+    /**
+     * Stops watching
+     */
+    public void stop() {
+        running = false;
+        timer.stop();
+        watcher.interrupt();
+    }
+
+    /**
+     * @return The overlay showing the frame times, which should be placed
+     *         above the other contents of the window
+     */
+    public Label getOverlay() {
+        return overlay;
+    }
+
+    /**
+     * Shows or hides the overlay. This must be called on the JavaFX
+     * application thread.
+     * 
+     * @param visible
+     *            Whether the overlay should be shown
+     */
+    public void setOverlayVisible(boolean visible) {
+        overlay.setVisible(visible);
+    }
+
+    /**
+     * @return The intervals between frames
+     */
+    public LatencyHistogram getFrameTimes() {
+        return frameTimes;
+    }
+
+    /**
+     * @return The number of stalls which have been reported
+     */
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    /**
+     * Called on the application thread on every pulse
+     * 
+     * @param now
+     *            The time of the pulse, in nanoseconds
+     */
+    private void pulse(long now) {
+        lastPulse = System.nanoTime();
+        if (lastFrame > 0L) {
+            long interval = now - lastFrame;
+            frameTimes.record(interval);
+            windowFrames++;
+            windowTotal += interval;
+            windowMax = Math.max(windowMax, interval);
+        }
+        lastFrame = now;
+
+        if (overlay.isVisible() && now - lastOverlayUpdate > OVERLAY_UPDATE_NANOS
+                && windowFrames > 0) {
+            overlay.setText(String.format(
+                    "Frame: %.1fms mean, %.1fms worst | %d pending loads | %d stalls",
+                    windowTotal / (windowFrames * 1e6), windowMax / 1e6,
+                    loader.getPendingLoads(), stalls.get()));
+            lastOverlayUpdate = now;
+            windowFrames = 0L;
+            windowTotal = 0L;
+            windowMax = 0L;
+        }
+    }
+
+    /**
+     * Checks for stalls until stopped
+     * 
+     * @param checkMillis
+     *            The interval between checks, in milliseconds
+     */
+    private void watch(long checkMillis) {
+        /*
+         * The time of the pulse before the stall we last reported, so that
+         * each stall is only reported once
+         */
+        long reportedPulse = -1L;
+        while (running) {
+            try {
+                Thread.sleep(checkMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long pulse = lastPulse;
+            long blocked = System.nanoTime() - pulse;
+            if (pulse == reportedPulse || blocked <= thresholdNanos) {
+                continue;
+            }
+            reportedPulse = pulse;
+            stalls.incrementAndGet();
+            StringBuilder message = new StringBuilder("JavaFX application thread blocked for "
+                    + TimeUnit.NANOSECONDS.toMillis(blocked) + "ms, at:");
+            for (StackTraceElement element : fxThread.getStackTrace()) {
+                message.append("\n\tat ").append(element);
+            }
+            System.out.println(message);
+        }
+    }
+}
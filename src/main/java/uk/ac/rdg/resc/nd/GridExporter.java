@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RadialGradientPaint;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Renders the grid of images to PNG files without a display, for every
+ * selection of dimension values which has images.
+ * 
+ * Each composite is laid out as {@link NDImageView} lays out the main window,
+ * using the row heights, column widths and plot-by values in the
+ * {@link Config}. The selector's cell shows the selected values instead.
+ * 
+ * Composites are rendered in parallel. Only a few more are queued than there
+ * are threads, so the memory used does not depend on the number of
+ * composites.
+ *
+ * @author Guy Griffiths
+ */
+public class GridExporter {
+    /** The background colours of the grid, as in the stylesheet */
+    private static final Color[] BACKGROUND = new Color[] { new Color(0xa9a9a9), Color.BLACK };
+    /** The background colour of the selector cell */
+    private static final Color SETTINGS_BACKGROUND = new Color(0xcccccc);
+
+    private final Config config;
+    private final NameFormat nameFormat;
+    private final AvailabilityIndex index;
+    /** Used to read smaller copies of the images. May be <code>null</code> */
+    private final RenditionCache renditions;
+    /** The {@link ImagePack} holding the images. May be <code>null</code> */
+    private final ImagePack pack;
+    /** The directory to write the composites to */
+    private final File outputDir;
+    /** The width of each composite */
+    private final int width;
+    /** The height of each composite */
+    private final int height;
+
+    /**
+     * @param config
+     *            The {@link Config} defining the layout
+     * @param nameFormat
+     *            The compiled {@link NameFormat} of the images
+     * @param index
+     *            The {@link AvailabilityIndex} of the images which exist
+     * @param renditions
+     *            A {@link RenditionCache} to read downscaled images from, or
+     *            <code>null</code> to always read the originals
+     * @param pack
+     *            The {@link ImagePack} holding the images, or
+     *            <code>null</code> if they are in the data path
+     * @param outputDir
+     *            The directory to write the composites to
+     * @param width
+     *            The width of each composite, in pixels
+     * @param height
+     *            The height of each composite, in pixels
+     */
+    public GridExporter(Config config, NameFormat nameFormat, AvailabilityIndex index,
+            RenditionCache renditions, ImagePack pack, File outputDir, int width, int height) {
+        this.config = config;
+        this.nameFormat = nameFormat;
+        this.index = index;
+        this.renditions = renditions;
+        this.pack = pack;
+        this.outputDir = outputDir;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Renders a composite for every selection which has images
+     * 
+     * @param nThreads
+     *            The number of composites to render in parallel
+     * @return The number of composites written
+     * @throws IOException
+     *             If the output directory cannot be created
+     * @throws InterruptedException
+     *             If interrupted while waiting for the composites to be written
+     */
+    public long exportAll(int nThreads) throws IOException, InterruptedException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create directory " + outputDir);
+        }
+
+        CoordinateSpace space = config.getCoordinateSpace();
+        /*
+         * Only the combinations which have images are visited, rather than
+         * every possible combination
+         */
+        List<int[]> combinations = index.getCombinations();
+        /*
+         * The names of the files written so far, in lower case since the
+         * filesystem may not distinguish case
+         */
+        Set<String> names = new HashSet<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        /*
+         * Limits the number of composites which have been queued but not
+         * written, each of which holds its own canvas
+         */
+        final Semaphore inFlight = new Semaphore(nThreads * 2);
+        final AtomicLong done = new AtomicLong(0L);
+        try {
+            for (int[] combination : combinations) {
+                final String[] selected = new String[combination.length];
+                boolean complete = true;
+                for (int i = 0; i < combination.length; i++) {
+                    if (combination[i] >= 0) {
+                        selected[i] = space.valueOf(i, combination[i]);
+                    } else if (space.size(i) > 0) {
+                        /*
+                         * Dimensions which aren't in the name format make no
+                         * difference to the images, so we only export their
+                         * first value
+                         */
+                        selected[i] = space.valueOf(i, 0);
+                    } else {
+                        complete = false;
+                    }
+                }
+                if (!complete) {
+                    continue;
+                }
+                final File output = new File(outputDir, getFileName(selected, names));
+                inFlight.acquire();
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            export(selected, output);
+                            long n = done.incrementAndGet();
+                            if (n % 100 == 0) {
+                                System.out.println("Exported " + n + " composites");
+                            }
+                        } catch (IOException e) {
+                            System.out.println("Problem writing " + output + ": "
+                                    + e.getMessage());
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        System.out.println("Exported " + done.get() + " composites to " + outputDir);
+        return done.get();
+    }
+
+    /**
+     * Renders the composite for a single selection and writes it to a file
+     * 
+     * @param selected
+     *            The values of the selectable {@link Dimension}s
+     * @param output
+     *            The PNG {@link File} to write
+     * @throws IOException
+     *             If the composite cannot be written
+     */
+    public void export(String[] selected, File output) throws IOException {
+        BufferedImage canvas = render(selected);
+        File temp = new File(output.getPath() + ".tmp");
+        if (!ImageIO.write(canvas, "png", temp)) {
+            throw new IOException("No PNG writer available");
+        }
+        if (output.exists() && !output.delete() || !temp.renameTo(output)) {
+            temp.delete();
+            throw new IOException("Could not replace " + output);
+        }
+    }
+
+    /**
+     * Renders the composite for a single selection. Images which cannot be
+     * read are left out.
+     * 
+     * @param selected
+     *            The values of the selectable {@link Dimension}s
+     * @return The composite
+     */
+    public BufferedImage render(String[] selected) {
+        BufferedImage canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = canvas.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setPaint(new RadialGradientPaint(width, height, Math.max(width, height),
+                    new float[] { 0f, 1f }, BACKGROUND));
+            g.fillRect(0, 0, width, height);
+
+            String[][] gridLayout = config.getGridLayout();
+            double[] colWidths = config.getColWidths();
+            double[] rowHeights = config.getRowHeights();
+            /*
+             * The space left for the cells, as in NDImageView
+             */
+            int gridWidth = width - NDImageView.BORDER * 2 - NDImageView.GAP
+                    * (config.getNCols() - 1);
+            int gridHeight = height - NDImageView.BORDER * 2 - NDImageView.GAP
+                    * (config.getNRows() - 1);
+
+            int y = NDImageView.BORDER;
+            for (int i = 0; i < config.getNRows(); i++) {
+                int cellHeight = (int) (gridHeight * rowHeights[i]);
+                int x = NDImageView.BORDER;
+                for (int j = 0; j < config.getNCols(); j++) {
+                    int cellWidth = (int) (gridWidth * colWidths[j]);
+                    String var = gridLayout[i][j];
+                    if (var == null) {
+                        drawText(g, Collections.singletonList("No image"), Color.BLACK, x, y,
+                                cellHeight);
+                    } else if (Config.SETTINGS.equals(var)) {
+                        drawSelection(g, selected, x, y, cellWidth, cellHeight);
+                    } else {
+                        try {
+                            drawImage(g, var, selected, x, y, cellWidth, cellHeight);
+                        } catch (IOException e) {
+                            /*
+                             * Leave the cell empty, as the viewer does
+                             */
+                            System.out.println("Problem reading image: " + e.getMessage());
+                        }
+                    }
+                    x += cellWidth + NDImageView.GAP;
+                }
+                y += cellHeight + NDImageView.GAP;
+            }
+        } finally {
+            g.dispose();
+        }
+
+        return canvas;
+    }
+
+    /**
+     * Draws an image centred in its cell, preserving its aspect ratio
+     */
+    private void drawImage(Graphics2D g, String nonSelectableValue, String[] selected, int x,
+            int y, int cellWidth, int cellHeight) throws IOException {
+        String image = nameFormat.render(nonSelectableValue, selected);
+        if (!index.contains(image)) {
+            return;
+        }
+        File file = new File(config.getPath() + image);
+        File source = renditions == null ? null : renditions.find(file, file.lastModified(),
+                cellWidth, cellHeight);
+        BufferedImage read;
+        if (source != null) {
+            read = ImageIO.read(source);
+        } else if (pack != null) {
+            read = ImageIO.read(pack.open(file));
+        } else {
+            read = ImageIO.read(file);
+        }
+        if (read == null) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        double factor = Math.min((double) cellWidth / read.getWidth(), (double) cellHeight
+                / read.getHeight());
+        int drawWidth = Math.max(1, (int) Math.round(read.getWidth() * factor));
+        int drawHeight = Math.max(1, (int) Math.round(read.getHeight() * factor));
+        read = RenditionCache.scale(read, Math.max(drawWidth, drawHeight));
+        g.drawImage(read, x + (cellWidth - drawWidth) / 2, y + (cellHeight - drawHeight) / 2,
+                drawWidth, drawHeight, null);
+    }
+
+    /**
+     * Draws the selected values in place of the variable selector
+     */
+    private void drawSelection(Graphics2D g, String[] selected, int x, int y, int cellWidth,
+            int cellHeight) {
+        g.setColor(SETTINGS_BACKGROUND);
+        g.fillRoundRect(x, y, cellWidth, cellHeight, 20, 20);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < selected.length; i++) {
+            lines.add(config.getSelectableDimensions().get(i).getDimTitle() + ": "
+                    + selected[i]);
+        }
+        drawText(g, lines, Color.BLACK, x + 20, y + 20, cellHeight - 40);
+    }
+
+    /**
+     * Draws lines of text, clipped to the height available
+     */
+    private static void drawText(Graphics2D g, List<String> lines, Color colour, int x, int y,
+            int maxHeight) {
+        g.setColor(colour);
+        g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 14));
+        FontMetrics metrics = g.getFontMetrics();
+        int lineY = y + metrics.getAscent();
+        for (String line : lines) {
+            if (lineY - y > maxHeight) {
+                break;
+            }
+            g.drawString(line, x, lineY);
+            lineY += metrics.getHeight();
+        }
+    }
+
+    /**
+     * Gets the name of the composite file for a selection. Characters which
+     * may not be allowed in file names are replaced, so different selections
+     * can give the same name (e.g. "a/b" and "a-b"). If so, the name is given
+     * a numbered suffix, so that no composite overwrites another.
+     * 
+     * @param selected
+     *            The values of the selectable {@link Dimension}s
+     * @param names
+     *            The names already given to other selections, in lower case.
+     *            The new name is added to these.
+     * @return The name of the composite file
+     */
+    private static String getFileName(String[] selected, Set<String> names) {
+        StringBuilder name = new StringBuilder();
+        for (String value : selected) {
+            if (name.length() > 0) {
+                name.append('_');
+            }
+            name.append(value.isEmpty() ? "none" : value.replaceAll("[^A-Za-z0-9.-]", "-"));
+        }
+        String base = name.length() == 0 ? "composite" : name.toString();
+        String fileName = base + ".png";
+        for (int n = 2; !names.add(fileName.toLowerCase(Locale.ROOT)); n++) {
+            fileName = base + "~" + n + ".png";
+        }
+        return fileName;
+    }
+}
@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javafx.scene.image.Image;
+
+/**
+ * A cache of decoded {@link Image}s, limited by the amount of memory they are
+ * estimated to use.
+ * 
+ * Images are keyed by their path and their modification time, so that an image
+ * which is replaced on disk will be reloaded. Since images are decoded to fit
+ * the cell they are displayed in, the size they were decoded at must also
+ * match. When the cache is full, the least
+ * recently used images are evicted.
+ * 
+ * Checking the modification time means reading the file's attributes, which is
+ * slow on a network filesystem, so each entry also records when it was last
+ * checked. {@link #getIfChecked(File, int, int, long, boolean)} returns an
+ * entry which was checked recently enough without needing the file's current
+ * modification time.
+ *
+ * @author Guy Griffiths
+ */
+public class ImageCache {
+    /** The maximum number of bytes which cached images may occupy */
+    private final long maxBytes;
+    /** The cached images, in order of least to most recently used */
+    private final LinkedHashMap<File, CachedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+    /** The estimated number of bytes currently occupied by cached images */
+    private long residentBytes = 0L;
+
+    private long hits = 0L;
+    private long misses = 0L;
+    /*
+     * Prefetching looks up images which may never be shown, so it is counted
+     * separately to give a true hit rate for the images which are
+     */
+    private long prefetchHits = 0L;
+    private long prefetchMisses = 0L;
+    private long evictions = 0L;
+
+    /**
+     * @param maxBytes
+     *            The maximum number of bytes which cached images may occupy
+     */
+    public ImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Retrieves an image from the cache
+     * 
+     * @param file
+     *            The image {@link File}
+     * @param lastModified
+     *            The modification time of the file
+     * @param width
+     *            The width of the box the image was decoded to fit
+     * @param height
+     *            The height of the box the image was decoded to fit
+     * @param prefetch
+     *            <code>true</code> if the image is being prefetched rather
+     *            than shown, so the lookup is counted separately
+     * @return The cached {@link Image}, or <code>null</code> if it is not
+     *         present, is out of date, or was decoded at a different size
+     */
+    public synchronized Image get(File file, long lastModified, int width, int height,
+            boolean prefetch) {
+        CachedImage cached = images.get(file);
+        if (cached == null) {
+            countMiss(prefetch);
+            return null;
+        }
+        if (cached.lastModified != lastModified || cached.width != width
+                || cached.height != height) {
+            /*
+             * The file has changed since we cached it, or it is needed at a
+             * different size
+             */
+            images.remove(file);
+            residentBytes -= cached.bytes;
+            countMiss(prefetch);
+            return null;
+        }
+        cached.checked = System.currentTimeMillis();
+        countHit(prefetch);
+        return cached.image;
+    }
+
+    /**
+     * Retrieves an image from the cache without knowing the current
+     * modification time of its file, provided that the cached image was last
+     * checked against the file recently enough. Nothing is counted if the
+     * image is not returned, since the caller is expected to follow up with
+     * {@link #get(File, long, int, int, boolean)}.
+     * 
+     * @param file
+     *            The image {@link File}
+     * @param width
+     *            The width of the box the image was decoded to fit
+     * @param height
+     *            The height of the box the image was decoded to fit
+     * @param checkedSince
+     *            The time, in milliseconds since the epoch, after which the
+     *            cached image must have been checked against its file
+     * @param prefetch
+     *            <code>true</code> if the image is being prefetched rather
+     *            than shown, so the lookup is counted separately
+     * @return The cached {@link Image}, or <code>null</code> if it is not
+     *         present, was decoded at a different size, or has not been
+     *         checked since <code>checkedSince</code>
+     */
+    public synchronized Image getIfChecked(File file, int width, int height,
+            long checkedSince, boolean prefetch) {
+        CachedImage cached = images.get(file);
+        if (cached == null || cached.checked < checkedSince || cached.width != width
+                || cached.height != height) {
+            return null;
+        }
+        countHit(prefetch);
+        return cached.image;
+    }
+
+    private void countHit(boolean prefetch) {
+        if (prefetch) {
+            prefetchHits++;
+        } else {
+            hits++;
+        }
+    }
+
+    private void countMiss(boolean prefetch) {
+        if (prefetch) {
+            prefetchMisses++;
+        } else {
+            misses++;
+        }
+    }
+
+    /**
+     * Adds an image to the cache, evicting the least recently used images if
+     * required. Images which failed to load, or which are larger than the
+     * entire cache, are not cached.
+     * 
+     * @param file
+     *            The image {@link File}
+     * @param lastModified
+     *            The modification time of the file
+     * @param width
+     *            The width of the box the image was decoded to fit
+     * @param height
+     *            The height of the box the image was decoded to fit
+     * @param image
+     *            The decoded {@link Image}
+     */
+    public synchronized void put(File file, long lastModified, int width, int height,
+            Image image) {
+        long bytes = estimateBytes(image);
+        if (image.isError() || bytes > maxBytes) {
+            return;
+        }
+        CachedImage previous = images.put(file, new CachedImage(image, lastModified, width,
+                height, bytes));
+        if (previous != null) {
+            residentBytes -= previous.bytes;
+        }
+        residentBytes += bytes;
+
+        Iterator<CachedImage> it = images.values().iterator();
+        while (residentBytes > maxBytes && it.hasNext()) {
+            CachedImage eldest = it.next();
+            it.remove();
+            residentBytes -= eldest.bytes;
+            evictions++;
+        }
+    }
+
+    /**
+     * @param image
+     *            An {@link Image}
+     * @return The approximate number of bytes the decoded {@link Image}
+     *         occupies
+     */
+    static long estimateBytes(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4L;
+    }
+
+    /**
+     * @return The number of times an image to be shown was found in the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of times an image to be shown was not found in the
+     *         cache
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of times an image to be prefetched was already in
+     *         the cache
+     */
+    public synchronized long getPrefetchHits() {
+        return prefetchHits;
+    }
+
+    /**
+     * @return The number of times an image to be prefetched was not in the
+     *         cache, and so was loaded
+     */
+    public synchronized long getPrefetchMisses() {
+        return prefetchMisses;
+    }
+
+    /**
+     * @return The number of images which have been evicted to make space
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return The estimated number of bytes occupied by cached images
+     */
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return The maximum number of bytes which cached images may occupy
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return images.size() + " images (" + (residentBytes / (1024 * 1024)) + "/"
+                + (maxBytes / (1024 * 1024)) + "MB), " + hits + " hits, " + misses + " misses, "
+                + prefetchHits + "/" + prefetchMisses + " prefetch hits/misses, " + evictions
+                + " evictions";
+    }
+
+    /**
+     * A cached image along with the information needed to validate it
+     */
+    private static class CachedImage {
+        private final Image image;
+        private final long lastModified;
+        private final int width;
+        private final int height;
+        private final long bytes;
+        /** When the modification time of the file was last checked */
+        private long checked;
+
+        public CachedImage(Image image, long lastModified, int width, int height, long bytes) {
+            this.image = image;
+            this.lastModified = lastModified;
+            this.width = width;
+            this.height = height;
+            this.bytes = bytes;
+            checked = System.currentTimeMillis();
+        }
+    }
+}
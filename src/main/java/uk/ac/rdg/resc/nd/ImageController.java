@@ -29,14 +29,23 @@
 package uk.ac.rdg.resc.nd;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import javafx.scene.image.Image;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
 import javafx.scene.image.ImageView;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 
 /**
  * A controller which accepts actions from the {@link VariableSelector} and
@@ -45,23 +54,132 @@ import javafx.stage.Stage;
  * @author Guy Griffiths
  */
 public class ImageController {
+    /**
+     * The time to wait after the last change in size of the views before
+     * images are decoded at the new size
+     */
+    private static final int RESIZE_DELAY_MS = 250;
+
     /** A {@link Map} of non-selectable dimension value to {@link ImageView} */
     private Map<String, ImageView> views;
     /** The {@link Config} file defining the settings */
     private Config config;
     /** The main {@link Stage} of the application */
     private Stage mainStage;
+    /** The compiled {@link NameFormat} used to build image paths */
+    private NameFormat nameFormat;
+    /** The {@link AvailabilityIndex} used to check which images exist */
+    private AvailabilityIndex index;
+    /** Converts between selectable dimension values and their indices */
+    private CoordinateSpace space;
+    /** The {@link ImageCache} holding recently decoded images */
+    private ImageCache cache;
+    /** The {@link Metrics} describing where time is spent */
+    private Metrics metrics;
+    /** The {@link RenditionCache} of downscaled images, if configured */
+    private RenditionCache renditions = null;
+    /** The {@link ImageLoader} which decodes images in the background */
+    private ImageLoader loader;
+    /** The {@link Prefetcher} which loads neighbouring images in advance */
+    private Prefetcher prefetcher;
+    /** The {@link Player} playing through a dimension, if there is one */
+    private Player player = null;
+    /** Shows the differences between selections, when enabled */
+    private DifferenceRenderer differences;
+    /** Whether to show the differences from the previous selection */
+    private boolean differenceMode = false;
+    /** The {@link FxWatchdog} which reports stalls, if enabled */
+    private FxWatchdog watchdog = null;
+    /** The {@link DataWatcher} which keeps the index up to date, if enabled */
+    private DataWatcher watcher = null;
+    /** Called on the JavaFX application thread when the index changes */
+    private List<Runnable> availabilityListeners = new ArrayList<>();
+    /** The indices of the currently selected values of the selectable dimensions */
+    private int[] currentCoords = null;
+    /** The selection before the current one */
+    private int[] previousCoords = null;
+    /**
+     * Delays reloading images after the views are resized, so that they are
+     * only decoded once the size has settled
+     */
+    private PauseTransition resizeDelay;
 
     /**
      * @param config
      *            The {@link Config} defining the settings
+     * @param nameFormat
+     *            The compiled {@link NameFormat} used to build image paths
+     * @param index
+     *            The {@link AvailabilityIndex} of the images which exist
+     * @param pack
+     *            The {@link ImagePack} holding the images, or
+     *            <code>null</code> if they are files in the data path
      * @param primaryStage
      *            The main {@link Stage} of the application
      */
-    public ImageController(Config config, Stage primaryStage) {
+    public ImageController(Config config, NameFormat nameFormat, AvailabilityIndex index,
+            ImagePack pack, Stage primaryStage) {
         views = new HashMap<>();
         this.config = config;
         this.mainStage = primaryStage;
+        this.nameFormat = nameFormat;
+        this.index = index;
+        this.space = config.getCoordinateSpace();
+        this.cache = new ImageCache(config.getCacheSize() * 1024L * 1024L);
+        /*
+         * Images in a pack are already quick to read, and a pack does not
+         * change while it is open
+         */
+        if (config.getDiskCachePath() != null && pack == null) {
+            this.renditions = new RenditionCache(new File(config.getDiskCachePath()),
+                    config.getDiskCacheSize() * 1024L * 1024L);
+        }
+        this.metrics = new Metrics(index, cache);
+        metrics.register();
+        if (config.getMetricsLogInterval() > 0) {
+            metrics.startLogging(config.getMetricsLogInterval());
+        }
+        this.loader = new ImageLoader(getLoaderThreads(), cache, renditions, pack, metrics,
+                config.getSwapBudget());
+        this.prefetcher = new Prefetcher(loader, config.getPrefetchSize());
+        this.differences = new DifferenceRenderer(loader, Runtime.getRuntime()
+                .availableProcessors());
+        if (config.getStallThreshold() > 0) {
+            watchdog = new FxWatchdog(config.getStallThreshold(), loader);
+            watchdog.start();
+        }
+
+        if (config.isWatchData() && pack == null) {
+            try {
+                watcher = new DataWatcher(config, nameFormat, index, new Runnable() {
+                    @Override
+                    public void run() {
+                        Platform.runLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                availabilityChanged();
+                            }
+                        });
+                    }
+                });
+                watcher.start();
+            } catch (IOException e) {
+                System.out.println("Cannot watch for new images: " + e.getMessage());
+            }
+        }
+
+        resizeDelay = new PauseTransition(Duration.millis(RESIZE_DELAY_MS));
+        resizeDelay.setOnFinished(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                /*
+                 * During playback, the frames are already sized as they load
+                 */
+                if (currentCoords != null && player == null) {
+                    selectImageSet(currentCoords);
+                }
+            }
+        });
     }
 
     /**
@@ -74,6 +192,47 @@ public class ImageController {
      */
     public void addImageView(ImageView view, String alias) {
         views.put(alias, view);
+        /*
+         * Images are decoded at the size they are displayed, so when the view
+         * changes size (e.g. the window is resized or made fullscreen) they
+         * need reloading
+         */
+        ChangeListener<Number> resizeListener = new ChangeListener<Number>() {
+            @Override
+            public void changed(ObservableValue<? extends Number> observable, Number oldValue,
+                    Number newValue) {
+                resizeDelay.playFromStart();
+            }
+        };
+        view.fitWidthProperty().addListener(resizeListener);
+        view.fitHeightProperty().addListener(resizeListener);
+    }
+
+    /**
+     * Registers a listener to be notified when images are added to or removed
+     * from the data path
+     * 
+     * @param listener
+     *            A {@link Runnable} which will be called on the JavaFX
+     *            application thread
+     */
+    public void addAvailabilityListener(Runnable listener) {
+        availabilityListeners.add(listener);
+    }
+
+    /**
+     * Called when the {@link AvailabilityIndex} has changed
+     */
+    private void availabilityChanged() {
+        for (Runnable listener : availabilityListeners) {
+            listener.run();
+        }
+        /*
+         * Images in the current selection may have appeared or disappeared
+         */
+        if (currentCoords != null && player == null) {
+            selectImageSet(currentCoords);
+        }
     }
 
     /**
@@ -86,29 +245,229 @@ public class ImageController {
         /*
          * Check we have the right number of arguments
          */
-        List<Dimension> dimensions = config.getSelectableDimensions();
-        if (coords.length != dimensions.size()) {
+        if (coords.length != space.getNDimensions()) {
+            throw new IllegalArgumentException(
+                    "Coords of image set must be equal to total number of dimensions - 1");
+        }
+        selectImageSet(space.indicesOf(coords));
+    }
+
+    /**
+     * Selects a set of images
+     * 
+     * @param coords
+     *            The indices of the values of all selectable dimensions to
+     *            choose, as given by {@link ImageController#getCoordinateSpace()}
+     */
+    public void selectImageSet(int[] coords) {
+        if (coords.length != space.getNDimensions()) {
             throw new IllegalArgumentException(
                     "Coords of image set must be equal to total number of dimensions - 1");
         }
+        if (currentCoords != null && !Arrays.equals(coords, currentCoords)) {
+            previousCoords = currentCoords;
+        }
+        currentCoords = coords.clone();
+        if (differenceMode && previousCoords != null) {
+            showDifferences();
+        } else {
+            differences.cancel();
+            /*
+             * For each of the ImageViews, get the path of the resultant image
+             * and load it in the background
+             */
+            Map<ImageView, File> images = new HashMap<>();
+            for (Entry<String, ImageView> view : views.entrySet()) {
+                images.put(view.getValue(), getPath(view.getKey(), coords));
+            }
+            loader.load(images);
+        }
+        prefetcher.prefetch(getNeighbours(coords));
+    }
+
+    /**
+     * Shows the differences between the images of the current and previous
+     * selections
+     */
+    private void showDifferences() {
         /*
-         * For each of the ImageViews, get the path of the resultant image and
-         * set the Image
+         * Anything still loading would overwrite the differences
          */
+        loader.load(new HashMap<ImageView, File>());
+        Map<ImageView, ImageLoader.Request[]> cells = new HashMap<>();
         for (Entry<String, ImageView> view : views.entrySet()) {
-            File path = getPath(view.getKey(), coords);
-            if (path != null) {
-                view.getValue().setImage(new Image("file:" + path.getAbsolutePath()));
-            } else {
-                view.getValue().setImage(null);
+            ImageView imageView = view.getValue();
+            if (imageView.getFitWidth() <= 0 || imageView.getFitHeight() <= 0) {
+                continue;
+            }
+            File current = getPath(view.getKey(), currentCoords);
+            File previous = getPath(view.getKey(), previousCoords);
+            cells.put(imageView, new ImageLoader.Request[] {
+                    current == null ? null : new ImageLoader.Request(current, imageView
+                            .getFitWidth(), imageView.getFitHeight()),
+                    previous == null ? null : new ImageLoader.Request(previous, imageView
+                            .getFitWidth(), imageView.getFitHeight()) });
+        }
+        differences.show(cells);
+    }
+
+    /**
+     * Sets whether each view shows its image, or the differences between its
+     * image in the current selection and in the previous one
+     * 
+     * @param differenceMode
+     *            <code>true</code> to show the differences
+     */
+    public void setDifferenceMode(boolean differenceMode) {
+        this.differenceMode = differenceMode;
+        if (currentCoords != null && player == null) {
+            selectImageSet(currentCoords);
+        }
+    }
+
+    /**
+     * Starts playing through the values of a dimension which have images,
+     * given the current values of the others. Any previous playback is
+     * stopped.
+     * 
+     * @param dimension
+     *            The index of the selectable dimension to play through
+     * @param fps
+     *            The target frame rate
+     * @param frameListener
+     *            A {@link Runnable} to call on the JavaFX application thread
+     *            each time a new frame is shown
+     * @return The {@link Player}, or <code>null</code> if there is no
+     *         selection or fewer than two values to play through
+     */
+    public Player startPlayback(int dimension, double fps, Runnable frameListener) {
+        stopPlayback();
+        if (currentCoords == null) {
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        int[] coords = currentCoords.clone();
+        for (int i = 0; i < space.size(dimension); i++) {
+            coords[dimension] = i;
+            if (index.hasImages(coords)) {
+                values.add(space.valueOf(dimension, i));
+            }
+        }
+        if (values.size() < 2) {
+            return null;
+        }
+        /*
+         * Anything still loading for the last selection is no longer needed
+         */
+        loader.load(new HashMap<ImageView, File>());
+        prefetcher.prefetch(new ArrayList<ImageLoader.Request>());
+        differences.cancel();
+
+        player = new Player(this, loader, views, dimension, space.valuesOf(currentCoords),
+                values, fps, config.getPlaybackBuffer(), getLoaderThreads(), frameListener);
+        player.start();
+        return player;
+    }
+
+    /**
+     * Stops playback, if it is running. The frame being shown becomes the
+     * current selection.
+     */
+    public void stopPlayback() {
+        if (player != null) {
+            player.stop();
+            int[] shown = space.indicesOf(player.getCoords());
+            if (!Arrays.equals(shown, currentCoords)) {
+                previousCoords = currentCoords;
+                currentCoords = shown;
             }
+            player = null;
         }
     }
 
+    /**
+     * @return Whether a dimension is being played through
+     */
+    public boolean isPlaying() {
+        return player != null;
+    }
+
+    /**
+     * @return The number of threads to decode images with
+     */
+    private static int getLoaderThreads() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Finds the images which would be displayed if any one of the selectable
+     * dimensions were moved one step away from the given co-ordinates
+     * 
+     * @param coords
+     *            The indices of the values of all selectable dimensions
+     * @return A {@link List} of {@link ImageLoader.Request}s, with the images
+     *         for each neighbouring selection grouped together
+     */
+    private List<ImageLoader.Request> getNeighbours(int[] coords) {
+        List<ImageLoader.Request> neighbours = new ArrayList<>();
+        if (prefetcher.getMaxImages() == 0) {
+            return neighbours;
+        }
+        int[] neighbour = coords.clone();
+        for (int i = 0; i < coords.length; i++) {
+            if (coords[i] < 0) {
+                continue;
+            }
+            /*
+             * Look for the nearest value with images available in each
+             * direction, since only those can be chosen in the selector
+             */
+            for (int step = 1; step >= -1; step -= 2) {
+                for (int j = coords[i] + step; j >= 0 && j < space.size(i); j += step) {
+                    neighbour[i] = j;
+                    if (index.hasImages(neighbour)) {
+                        for (Entry<String, ImageView> view : views.entrySet()) {
+                            File path = getPath(view.getKey(), neighbour);
+                            ImageView imageView = view.getValue();
+                            if (path != null && imageView.getFitWidth() > 0
+                                    && imageView.getFitHeight() > 0) {
+                                neighbours.add(new ImageLoader.Request(path, imageView
+                                        .getFitWidth(), imageView.getFitHeight()));
+                            }
+                        }
+                        break;
+                    }
+                }
+            }
+            neighbour[i] = coords[i];
+        }
+        return neighbours;
+    }
+
     /**
      * Quit the application
      */
     public void quit() {
+        stopPlayback();
+        System.out.println("Availability index saved " + index.getStatsSaved()
+                + " filesystem checks");
+        System.out.println("Image cache: " + cache);
+        System.out.println("Metrics: " + metrics);
+        metrics.shutdown();
+        if (watchdog != null) {
+            System.out.println("Frame times: " + watchdog.getFrameTimes() + ", "
+                    + watchdog.getStalls() + " stalls");
+            watchdog.stop();
+        }
+        if (watcher != null) {
+            watcher.stop();
+        }
+        prefetcher.shutdown();
+        differences.shutdown();
+        loader.shutdown();
+        if (renditions != null) {
+            renditions.shutdown();
+        }
         mainStage.close();
     }
 
@@ -135,6 +494,84 @@ public class ImageController {
         return config.getNonSelectableDimension();
     }
 
+    /**
+     * @return The {@link AvailabilityIndex} used to check which images exist
+     */
+    public AvailabilityIndex getAvailabilityIndex() {
+        return index;
+    }
+
+    /**
+     * @return The {@link CoordinateSpace} converting between the values of the
+     *         selectable {@link Dimension}s and their indices
+     */
+    public CoordinateSpace getCoordinateSpace() {
+        return space;
+    }
+
+    /**
+     * @return The indices of the currently selected values of the selectable
+     *         {@link Dimension}s, or <code>null</code> if nothing has been
+     *         selected
+     */
+    public int[] getSelectedIndices() {
+        return currentCoords == null ? null : currentCoords.clone();
+    }
+
+    /**
+     * @return The {@link ImageCache} holding recently decoded images
+     */
+    public ImageCache getImageCache() {
+        return cache;
+    }
+
+    /**
+     * @return The {@link FxWatchdog} which reports stalls, or <code>null</code>
+     *         if it is disabled
+     */
+    public FxWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    /**
+     * @return The {@link Metrics} describing where time is spent
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Checks whether any images are available for a set of co-ordinates
+     * 
+     * @param selectableValues
+     *            The values for the selectable {@link Dimension}s, in the same
+     *            order as the dimensions returned by
+     *            {@link ImageController#getSelectableDimensions()}
+     * @return <code>true</code> if at least one image exists for these values
+     */
+    public boolean hasImages(String... selectableValues) {
+        if (selectableValues.length != getSelectableDimensions().size()) {
+            return false;
+        }
+        return index.hasImages(selectableValues);
+    }
+
+    /**
+     * Checks whether any images are available for a set of co-ordinates
+     * 
+     * @param selectableIndices
+     *            The indices of the values for the selectable
+     *            {@link Dimension}s, as given by
+     *            {@link ImageController#getCoordinateSpace()}
+     * @return <code>true</code> if at least one image exists for these values
+     */
+    public boolean hasImages(int[] selectableIndices) {
+        if (selectableIndices.length != space.getNDimensions()) {
+            return false;
+        }
+        return index.hasImages(selectableIndices);
+    }
+
     /**
      * Gets the {@link File} associated with the given set of co-ordinates
      * 
@@ -145,53 +582,40 @@ public class ImageController {
      *            order as the dimensions returned by
      *            {@link ImageController#getSelectableDimensions()}
      * @return A {@link File} pointing to the image, or <code>null</code> if it
-     *         does not exist
+     *         does not exist. If the images are in an {@link ImagePack}, this
+     *         refers to the image within it.
      */
     public File getPath(String nonSelectableValue, String... selectableValues) {
         if (selectableValues.length != getSelectableDimensions().size()) {
             return null;
         }
 
-        String name = config.getNameFormat();
-        for (int i = 0; i < selectableValues.length; i++) {
-            name = doNameReplace(name, getSelectableDimensions().get(i).getDimName(),
-                    selectableValues[i]);
-        }
-        name = doNameReplace(name, getNonSelectableDimension().getDimName(), nonSelectableValue);
+        String name = nameFormat.render(nonSelectableValue, selectableValues);
+        metrics.pathResolved();
 
-        File file = new File(config.getPath() + name);
-        if (file.exists()) {
-            return file;
+        if (index.contains(name)) {
+            return new File(config.getPath() + name);
         } else {
             return null;
         }
     }
 
     /**
-     * Convenience method for replacing tokens in the name format
+     * Gets the {@link File} associated with the given set of co-ordinates
      * 
-     * @param nameFormat
-     *            The name format
-     * @param dimName
-     *            The name of the dimension to replace
-     * @param value
-     *            The value to replace the dimName with
-     * @return The name format with the substitution made
-     */
-    private String doNameReplace(String nameFormat, String dimName, String value) {
-        if (!value.isEmpty()) {
-            nameFormat = nameFormat.replaceAll("\\??\\$\\{" + dimName + "\\}", value);
-        } else {
-            /*
-             * This deals with the case where we have an empty dimension value.
-             * 
-             * Name format strings can have a character which should be omitted
-             * if it immediately proceeds an empty dimension, indicated by a
-             * question mark
-             */
-            nameFormat = nameFormat.replaceAll(".\\?\\$\\{" + dimName + "\\}", value);
-            nameFormat = nameFormat.replaceAll("\\$\\{" + dimName + "\\}", value);
+     * @param nonSelectableValue
+     *            The value for the non-selectable {@link Dimension}
+     * @param selectableIndices
+     *            The indices of the values for the selectable
+     *            {@link Dimension}s, as given by
+     *            {@link ImageController#getCoordinateSpace()}
+     * @return A {@link File} pointing to the image, or <code>null</code> if it
+     *         does not exist
+     */
+    public File getPath(String nonSelectableValue, int[] selectableIndices) {
+        if (selectableIndices.length != space.getNDimensions()) {
+            return null;
         }
-        return nameFormat;
+        return getPath(nonSelectableValue, space.valuesOf(selectableIndices));
     }
 }
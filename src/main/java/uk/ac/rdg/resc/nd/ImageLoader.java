@@ -0,0 +1,514 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.util.Duration;
+
+/**
+ * Loads images on background threads and passes them to {@link ImageView}s
+ * once they have been decoded.
+ * 
+ * Each call to {@link ImageLoader#load(Map)} supersedes the previous one. Any
+ * images from earlier requests which have not yet started loading are
+ * cancelled, and any which are already being decoded are discarded when they
+ * finish, so that only the most recent selection is ever displayed.
+ * 
+ * Images are decoded at the size of the {@link ImageView} which will display
+ * them (preserving the aspect ratio), rather than at their full resolution.
+ * Decoded images are kept in an {@link ImageCache}, so that returning to a
+ * recently viewed selection does not require the images to be read again.
+ * Where a {@link RenditionCache} is available, a downscaled copy on local disk
+ * is read in preference to the original. Where the images are in an
+ * {@link ImagePack}, they are decoded straight from its mapped memory.
+ * 
+ * Normally each view is updated as soon as its image has been decoded. If a
+ * swap budget is set, the images of a request are held back until they have
+ * all been decoded and then shown together, so that the views never show a
+ * mixture of two selections. If they take longer than the budget, those which
+ * are ready are shown, with a placeholder in place of the rest until they
+ * arrive.
+ *
+ * @author Guy Griffiths
+ */
+public class ImageLoader {
+    /**
+     * The time, in milliseconds, for which a cached image is used without
+     * checking whether its file has been modified
+     */
+    private static final long RECHECK_INTERVAL_MS = 5000L;
+    /** The width of the placeholder images shown while images load */
+    private static final int PLACEHOLDER_WIDTH = 64;
+    /** The colour of the placeholder images (translucent grey) */
+    private static final int PLACEHOLDER_COLOUR = 0x40808080;
+
+    /** The {@link ImageCache} holding recently decoded images */
+    private final ImageCache cache;
+    /** The {@link RenditionCache} of downscaled images, or <code>null</code> */
+    private final RenditionCache renditions;
+    /** The {@link ImagePack} holding the images, or <code>null</code> */
+    private final ImagePack pack;
+    /** The {@link Metrics} to record reads and display times in */
+    private final Metrics metrics;
+    /** The threads which decode the images */
+    private final ExecutorService executor;
+    /** The ID of the most recent request */
+    private final AtomicLong currentRequest = new AtomicLong(0L);
+    /** The tasks submitted for the most recent request */
+    private final List<Future<?>> pending = new ArrayList<>();
+    /**
+     * The time to wait for all of the images of a request before showing those
+     * which have loaded, in milliseconds, or 0 to show each as it loads
+     */
+    private final int swapBudget;
+    /** The {@link Swap} holding back the images of the most recent request */
+    private Swap currentSwap = null;
+
+    /**
+     * @param nThreads
+     *            The number of background threads to decode images with
+     * @param cache
+     *            The {@link ImageCache} to store decoded images in
+     * @param renditions
+     *            The {@link RenditionCache} to read downscaled images from, or
+     *            <code>null</code> if only the originals should be read
+     * @param pack
+     *            The {@link ImagePack} holding the images, or
+     *            <code>null</code> if they are files in the data path
+     * @param metrics
+     *            The {@link Metrics} to record reads and display times in
+     * @param swapBudget
+     *            The time to wait for all of the images of a request to be
+     *            decoded so that they can be shown together, in milliseconds,
+     *            or 0 to show each image as soon as it has been decoded
+     */
+    public ImageLoader(int nThreads, ImageCache cache, RenditionCache renditions,
+            ImagePack pack, Metrics metrics, int swapBudget) {
+        this.swapBudget = swapBudget;
+        this.cache = cache;
+        this.renditions = renditions;
+        this.pack = pack;
+        this.metrics = metrics;
+        executor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nd-image-loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Loads a new set of images, superseding any previous request. This should
+     * be called from the JavaFX application thread.
+     * 
+     * @param images
+     *            A {@link Map} of {@link ImageView} to the image {@link File}
+     *            it should display. Views mapped to <code>null</code> are
+     *            cleared immediately, or along with the other views if there
+     *            is a swap budget. Views which have not yet been given a
+     *            size are left alone - they should be loaded again once they
+     *            have been laid out.
+     */
+    public void load(Map<ImageView, File> images) {
+        final long request = currentRequest.incrementAndGet();
+        final long start = System.nanoTime();
+        /*
+         * Anything which has not started yet is no longer needed. Anything
+         * which has started will be ignored when it completes
+         */
+        for (Future<?> task : pending) {
+            task.cancel(false);
+        }
+        pending.clear();
+
+        /*
+         * Counts down as views are updated, so we know when the whole
+         * selection is displayed
+         */
+        int nToLoad = 0;
+        for (Entry<ImageView, File> entry : images.entrySet()) {
+            if (entry.getValue() != null && entry.getKey().getFitWidth() > 0
+                    && entry.getKey().getFitHeight() > 0) {
+                nToLoad++;
+            }
+        }
+        final AtomicInteger remaining = new AtomicInteger(nToLoad);
+        if (currentSwap != null) {
+            currentSwap.cancel();
+            currentSwap = null;
+        }
+        final Swap swap = swapBudget > 0 ? new Swap(start, nToLoad) : null;
+
+        for (Entry<ImageView, File> entry : images.entrySet()) {
+            final ImageView view = entry.getKey();
+            final File file = entry.getValue();
+            if (file == null) {
+                if (swap != null) {
+                    swap.ready.put(view, null);
+                } else {
+                    view.setImage(null);
+                }
+                continue;
+            }
+            if (view.getFitWidth() <= 0 || view.getFitHeight() <= 0) {
+                continue;
+            }
+            if (swap != null) {
+                swap.waiting.add(view);
+            }
+            final Request imageRequest = new Request(file, view.getFitWidth(),
+                    view.getFitHeight());
+            pending.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (currentRequest.get() != request) {
+                        return;
+                    }
+                    final Image image = getImage(imageRequest);
+                    Platform.runLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (currentRequest.get() != request) {
+                                return;
+                            }
+                            if (swap != null) {
+                                swap.loaded(view, image);
+                            } else {
+                                view.setImage(image);
+                                if (remaining.decrementAndGet() == 0) {
+                                    metrics.selectionDisplayed(System.nanoTime() - start);
+                                }
+                            }
+                        }
+                    });
+                }
+            }));
+        }
+        if (swap != null) {
+            currentSwap = swap;
+            swap.begin();
+        }
+    }
+
+    /**
+     * @return The number of images from the most recent request which have not
+     *         yet been loaded. This should be called from the JavaFX
+     *         application thread.
+     */
+    public int getPendingLoads() {
+        int n = 0;
+        for (Future<?> task : pending) {
+            if (!task.isDone()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Gets a decoded image, either from the cache or by reading it. This
+     * should not be called from the JavaFX application thread.
+     * 
+     * @param request
+     *            The {@link Request} defining the image file and the size to
+     *            decode it at
+     * @return The decoded {@link Image}, or <code>null</code> if it could not
+     *         be read from the {@link ImagePack}
+     */
+    Image getImage(Request request) {
+        return getImage(request, false);
+    }
+
+    /**
+     * Loads an image into the cache ahead of it being needed. This is the same
+     * as {@link ImageLoader#getImage(Request)}, but is counted separately in
+     * the cache statistics.
+     * 
+     * @param request
+     *            The {@link Request} defining the image file and the size to
+     *            decode it at
+     */
+    void prefetch(Request request) {
+        getImage(request, true);
+    }
+
+    private Image getImage(Request request, boolean prefetch) {
+        /*
+         * Reading the modification time of every file in a selection is slow
+         * on a network filesystem, so a cached image is used as it is if its
+         * file was checked recently. Images replaced on disk will be picked up
+         * once the check is due again.
+         */
+        Image cached = cache.getIfChecked(request.file, request.width, request.height,
+                System.currentTimeMillis() - RECHECK_INTERVAL_MS, prefetch);
+        if (cached != null) {
+            return cached;
+        }
+        long lastModified = pack == null ? request.file.lastModified() : pack
+                .getLastModified(request.file);
+        Image image = cache.get(request.file, lastModified, request.width, request.height,
+                prefetch);
+        if (image == null) {
+            File source = request.file;
+            if (renditions != null) {
+                File rendition = renditions.find(request.file, lastModified, request.width,
+                        request.height);
+                if (rendition != null) {
+                    source = rendition;
+                } else {
+                    renditions.buildLater(request.file, lastModified, request.width,
+                            request.height);
+                }
+            }
+            long start = System.nanoTime();
+            if (pack != null && source == request.file) {
+                image = decodeFromPack(request);
+                metrics.imageDecoded(pack.getLength(source), System.nanoTime() - start);
+            } else {
+                image = new Image(source.toURI().toString(), request.width, request.height,
+                        true, true);
+                metrics.imageDecoded(source.length(), System.nanoTime() - start);
+            }
+            if (image == null) {
+                /*
+                 * The pack could not be read, which has already been reported
+                 */
+            } else if (image.isError()) {
+                System.out.println("Problem loading image " + request.file + ": "
+                        + image.getException());
+            } else {
+                cache.put(request.file, lastModified, request.width, request.height, image);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Decodes an image from the {@link ImagePack}
+     */
+    private Image decodeFromPack(Request request) {
+        try (InputStream in = pack.open(request.file)) {
+            return new Image(in, request.width, request.height, true, true);
+        } catch (IOException e) {
+            System.out.println("Problem reading image " + request.file + " from pack: "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stops all background loading
+     */
+    public void shutdown() {
+        currentRequest.incrementAndGet();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Creates an image to show in a view while its real image is loading
+     * 
+     * @param view
+     *            The {@link ImageView} the placeholder will be shown in
+     * @return A translucent grey {@link Image} with the same shape as the view
+     */
+    private static Image createPlaceholder(ImageView view) {
+        int height = (int) Math.max(1, Math.round(PLACEHOLDER_WIDTH * view.getFitHeight()
+                / view.getFitWidth()));
+        int[] pixels = new int[PLACEHOLDER_WIDTH * height];
+        Arrays.fill(pixels, PLACEHOLDER_COLOUR);
+        WritableImage placeholder = new WritableImage(PLACEHOLDER_WIDTH, height);
+        placeholder.getPixelWriter().setPixels(0, 0, PLACEHOLDER_WIDTH, height,
+                PixelFormat.getIntArgbInstance(), pixels, 0, PLACEHOLDER_WIDTH);
+        return placeholder;
+    }
+
+    /**
+     * Holds back the images of a request until they have all been decoded, or
+     * the swap budget has run out, and then shows them all at once. This is
+     * only used on the JavaFX application thread, so all of the views are
+     * updated in the same pulse.
+     */
+    private class Swap {
+        /** The time the request was made, from {@link System#nanoTime()} */
+        private final long start;
+        /** The number of images the request is loading */
+        private final int nToLoad;
+        /** The images which are ready to show, including views to clear */
+        private final Map<ImageView, Image> ready = new HashMap<>();
+        /** The views whose images are still being decoded */
+        private final List<ImageView> waiting = new ArrayList<>();
+        /** Shows the images which are ready once the budget has run out */
+        private final PauseTransition budget;
+        /** Whether the images have been shown */
+        private boolean swapped = false;
+
+        /**
+         * @param start
+         *            The time the request was made, from
+         *            {@link System#nanoTime()}
+         * @param nToLoad
+         *            The number of images the request is loading
+         */
+        public Swap(long start, int nToLoad) {
+            this.start = start;
+            this.nToLoad = nToLoad;
+            budget = new PauseTransition(Duration.millis(swapBudget));
+            budget.setOnFinished(new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent event) {
+                    if (!swapped) {
+                        metrics.partialSwap();
+                        swap();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Starts waiting for the images, once all of the views have been added
+         */
+        public void begin() {
+            if (waiting.isEmpty()) {
+                swap();
+            } else {
+                budget.playFromStart();
+            }
+        }
+
+        /**
+         * Called when the image for a view has been decoded
+         * 
+         * @param view
+         *            The {@link ImageView} the image is for
+         * @param image
+         *            The decoded {@link Image}, or <code>null</code>
+         */
+        public void loaded(ImageView view, Image image) {
+            waiting.remove(view);
+            if (swapped) {
+                /*
+                 * The budget has run out, so this replaces a placeholder
+                 */
+                view.setImage(image);
+                if (waiting.isEmpty()) {
+                    metrics.selectionDisplayed(System.nanoTime() - start);
+                }
+            } else {
+                ready.put(view, image);
+                if (waiting.isEmpty()) {
+                    budget.stop();
+                    swap();
+                }
+            }
+        }
+
+        /**
+         * Stops waiting, since a newer request has been made
+         */
+        public void cancel() {
+            budget.stop();
+            swapped = true;
+        }
+
+        /**
+         * Shows all of the images which are ready, and placeholders for those
+         * which are not
+         */
+        private void swap() {
+            swapped = true;
+            for (Entry<ImageView, Image> entry : ready.entrySet()) {
+                entry.getKey().setImage(entry.getValue());
+            }
+            ready.clear();
+            for (ImageView view : waiting) {
+                view.setImage(createPlaceholder(view));
+            }
+            if (waiting.isEmpty() && nToLoad > 0) {
+                metrics.selectionDisplayed(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * An image to load, and the size of the box it should be decoded to fit
+     */
+    public static class Request {
+        private final File file;
+        private final int width;
+        private final int height;
+
+        /**
+         * @param file
+         *            The image {@link File}
+         * @param width
+         *            The width of the box the image will be displayed in
+         * @param height
+         *            The height of the box the image will be displayed in
+         */
+        public Request(File file, double width, double height) {
+            this.file = file;
+            /*
+             * Round up so that the image is never scaled up for display
+             */
+            this.width = (int) Math.ceil(width);
+            this.height = (int) Math.ceil(height);
+        }
+
+        /**
+         * @return The image {@link File}
+         */
+        public File getFile() {
+            return file;
+        }
+    }
+}
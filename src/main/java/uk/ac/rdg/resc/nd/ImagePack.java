@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A single file holding many images, along with an index of where each one
+ * is. Reading images from a pack avoids opening, checking and closing a file
+ * for each one, which dominates the cost of reading small images from network
+ * storage.
+ * 
+ * The file starts with a header of {@link ImagePack#HEADER_SIZE} bytes: the
+ * {@link ImagePack#MAGIC} number, the {@link ImagePack#VERSION}, and the
+ * offset and length of the index (the rest is reserved). The image data
+ * follows, and the index is at the end. The index is the number of images,
+ * then for each one its path (as it would be relative to the data path, in the
+ * form written by {@link java.io.DataOutput#writeUTF(String)}), offset,
+ * length, CRC-32 checksum and the modification time of the file it was copied
+ * from. All numbers are big-endian.
+ * 
+ * The file is read through memory mapping, so finding an image is a lookup in
+ * the index, and images are decoded straight from the mapped memory with no
+ * system calls or copying. Within the application, an image in a pack is
+ * identified by a {@link File} beneath the pack's path, as though the pack
+ * were a directory.
+ *
+ * @author Guy Griffiths
+ */
+public class ImagePack {
+    /** Identifies a pack file ("NDPK") */
+    static final int MAGIC = 0x4e44504b;
+    /** The version of the pack format */
+    static final int VERSION = 1;
+    /** The size of the header, in bytes */
+    static final int HEADER_SIZE = 32;
+    /** The maximum size of each mapped region of the file */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /** The pack file */
+    private final File file;
+    /** The prefix of the {@link File}s which refer to images in the pack */
+    private final String prefix;
+    /** The open pack file */
+    private final FileChannel channel;
+    /** The size of the pack file when it was opened */
+    private final long size;
+    /**
+     * The file, mapped in segments of {@link ImagePack#SEGMENT_SIZE} bytes as
+     * they are needed
+     */
+    private final MappedByteBuffer[] segments;
+    /** The images in the pack, keyed by their path relative to the data path */
+    private final Map<String, PackEntry> entries;
+    /** The end of the index, after which nothing in the file is used */
+    private final long indexEnd;
+
+    /**
+     * Opens a pack and reads its index
+     * 
+     * @param file
+     *            The pack file
+     * @throws IOException
+     *             If the file cannot be read, or is not a valid pack
+     */
+    public ImagePack(File file) throws IOException {
+        this.file = file;
+        this.prefix = file.getPath() + File.separator;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            this.size = channel.size();
+            this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                /*
+                 * Keep reading until we have the whole header
+                 */
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException(file + " is not an image pack");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " is an image pack of unsupported version "
+                        + version);
+            }
+            long indexOffset = header.getLong();
+            long indexLength = header.getLong();
+            if (indexOffset < HEADER_SIZE || indexLength < 0
+                    || indexOffset + indexLength > size) {
+                throw new IOException("The index of " + file + " is missing or truncated");
+            }
+            this.entries = readIndex(channel.map(MapMode.READ_ONLY, indexOffset, indexLength));
+            this.indexEnd = indexOffset + indexLength;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the index of a pack
+     * 
+     * @param index
+     *            The index
+     * @return The entries, keyed by path
+     */
+    static Map<String, PackEntry> readIndex(ByteBuffer index) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(index));
+        int n = in.readInt();
+        Map<String, PackEntry> entries = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            String name = in.readUTF();
+            entries.put(name, new PackEntry(in.readLong(), in.readInt(), in.readInt(), in
+                    .readLong()));
+        }
+        return entries;
+    }
+
+    /**
+     * @return The pack file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The paths of the images in the pack, relative to the data path
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Finds the images in the pack which match a name format
+     * 
+     * @param nameFormat
+     *            The compiled {@link NameFormat} of the images
+     * @return A {@link Map} of the path of each image (relative to the data
+     *         path) to its dimension values, as returned by
+     *         {@link NameFormat#parse(String)}
+     */
+    public Map<String, String[]> getImages(NameFormat nameFormat) {
+        Map<String, String[]> images = new HashMap<>();
+        for (String name : entries.keySet()) {
+            String[] coords = nameFormat.parse(name);
+            if (coords != null) {
+                images.put(name, coords);
+            }
+        }
+        return images;
+    }
+
+    /**
+     * @param image
+     *            The {@link File} referring to an image
+     * @return The entry for the image, or <code>null</code> if it is not in
+     *         this pack
+     */
+    private PackEntry getEntry(File image) {
+        String path = image.getPath();
+        if (!path.startsWith(prefix)) {
+            return null;
+        }
+        return entries.get(path.substring(prefix.length()).replace(File.separatorChar, '/'));
+    }
+
+    /**
+     * @param image
+     *            The {@link File} referring to an image
+     * @return Whether the image is in this pack
+     */
+    public boolean contains(File image) {
+        return getEntry(image) != null;
+    }
+
+    /**
+     * @param image
+     *            The {@link File} referring to an image in the pack
+     * @return The modification time of the file the image was copied from, or
+     *         0 if it is not in the pack
+     */
+    public long getLastModified(File image) {
+        PackEntry entry = getEntry(image);
+        return entry == null ? 0L : entry.lastModified;
+    }
+
+    /**
+     * @param image
+     *            The {@link File} referring to an image in the pack
+     * @return The size of the image in bytes, or 0 if it is not in the pack
+     */
+    public long getLength(File image) {
+        PackEntry entry = getEntry(image);
+        return entry == null ? 0L : entry.length;
+    }
+
+    /**
+     * Gets the contents of an image without copying them
+     * 
+     * @param image
+     *            The {@link File} referring to an image in the pack
+     * @return A read-only {@link ByteBuffer} containing the image
+     * @throws IOException
+     *             If the image is not in the pack, or it cannot be mapped
+     */
+    public ByteBuffer getBuffer(File image) throws IOException {
+        PackEntry entry = getEntry(image);
+        if (entry == null) {
+            throw new IOException(image + " is not in " + file);
+        }
+        if (entry.offset + entry.length > size) {
+            throw new IOException(image + " is beyond the end of " + file);
+        }
+        int segment = (int) (entry.offset / SEGMENT_SIZE);
+        long segmentStart = segment * SEGMENT_SIZE;
+        if (entry.offset + entry.length > segmentStart + SEGMENT_SIZE) {
+            /*
+             * This image spans two segments, so it is mapped on its own
+             */
+            return channel.map(MapMode.READ_ONLY, entry.offset, entry.length);
+        }
+        ByteBuffer buffer = getSegment(segment).duplicate();
+        buffer.position((int) (entry.offset - segmentStart));
+        buffer.limit(buffer.position() + entry.length);
+        return buffer.slice();
+    }
+
+    /**
+     * @param image
+     *            The {@link File} referring to an image in the pack
+     * @return An {@link InputStream} reading the image from mapped memory
+     * @throws IOException
+     *             If the image is not in the pack, or it cannot be mapped
+     */
+    public InputStream open(File image) throws IOException {
+        return new ByteBufferInputStream(getBuffer(image));
+    }
+
+    /**
+     * @param image
+     *            The {@link File} referring to an image in the pack
+     * @return A copy of the image
+     * @throws IOException
+     *             If the image is not in the pack, or it cannot be mapped
+     */
+    public byte[] read(File image) throws IOException {
+        ByteBuffer buffer = getBuffer(image);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param image
+     *            The {@link File} referring to an image in the pack
+     * @return The CRC-32 checksum of the image when it was added
+     * @throws IOException
+     *             If the image is not in the pack
+     */
+    public int getChecksum(File image) throws IOException {
+        PackEntry entry = getEntry(image);
+        if (entry == null) {
+            throw new IOException(image + " is not in " + file);
+        }
+        return entry.crc;
+    }
+
+    /**
+     * Maps a segment of the file, if it has not been already
+     */
+    private synchronized MappedByteBuffer getSegment(int segment) throws IOException {
+        if (segments[segment] == null) {
+            long start = segment * SEGMENT_SIZE;
+            segments[segment] = channel.map(MapMode.READ_ONLY, start,
+                    Math.min(SEGMENT_SIZE, size - start));
+        }
+        return segments[segment];
+    }
+
+    /**
+     * @return The entries in the pack, keyed by path
+     */
+    Map<String, PackEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return The end of the index. Anything after this is left over from an
+     *         unfinished write, and can be overwritten.
+     */
+    long getIndexEnd() {
+        return indexEnd;
+    }
+
+    /**
+     * Closes the pack file. The mapped memory is released once it is no longer
+     * referenced.
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            /*
+             * Nothing was written, so there is nothing to lose
+             */
+        }
+    }
+
+    @Override
+    public String toString() {
+        long bytes = 0L;
+        for (Entry<String, PackEntry> entry : entries.entrySet()) {
+            bytes += entry.getValue().length;
+        }
+        return file + " (" + entries.size() + " images, " + (bytes / (1024 * 1024)) + "MB)";
+    }
+
+    /**
+     * The location of an image within a pack
+     */
+    static class PackEntry {
+        final long offset;
+        final int length;
+        final int crc;
+        final long lastModified;
+
+        public PackEntry(long offset, int length, int crc, long lastModified) {
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+            this.lastModified = lastModified;
+        }
+    }
+}
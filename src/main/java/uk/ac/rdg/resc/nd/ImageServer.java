@@ -0,0 +1,690 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the images, the values available for each dimension and rendered
+ * composites of the grid over HTTP, so that the data can be browsed without
+ * JavaFX. The endpoints are:
+ * 
+ * <ul>
+ * <li><code>/</code> - a page for browsing the composites</li>
+ * <li><code>/dimensions</code> - the selectable dimensions, their number of
+ * values and the first of them, as JSON</li>
+ * <li><code>/available?dim=value&amp;...</code> - the values of each
+ * dimension which have images given the values of the others, as JSON</li>
+ * </ul>
+ * 
+ * Dimensions can have too many values to list (e.g. a range of dates), so no
+ * more than {@link AvailabilityIndex#MAX_CHOICES} values of a dimension are
+ * given at once, along with its first and last. For
+ * <code>/available</code>, these are the ones around the selected value.
+ * 
+ * <ul>
+ * <li><code>/composite?dim=value&amp;...&amp;width=w&amp;height=h</code> - the
+ * grid for a selection, as PNG</li>
+ * <li><code>/images/path</code> - an image, by its path relative to the data
+ * path</li>
+ * </ul>
+ * 
+ * Images and composites carry an ETag and Last-Modified header, so browsers
+ * only download them again if they have changed, and are kept in a
+ * {@link ByteCache} shared by all requests. Requests are handled by a fixed
+ * number of threads with a bounded queue; when the queue is full, new
+ * requests are refused straight away with <code>503 Service
+ * Unavailable</code> and a <code>Retry-After</code> header, rather than
+ * waiting or using more memory.
+ *
+ * @author Guy Griffiths
+ */
+public class ImageServer {
+    /** The default size of composites */
+    private static final int DEFAULT_WIDTH = 1280;
+    private static final int DEFAULT_HEIGHT = 720;
+    /** The maximum width or height of composites */
+    private static final int MAX_SIZE = 4096;
+    /** The number of requests which may wait for a thread */
+    private static final int QUEUE_SIZE = 64;
+    /** How long clients are asked to wait before retrying a refused request */
+    private static final int RETRY_AFTER_SECONDS = 1;
+    /** The format of dates in HTTP headers */
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME
+            .withZone(ZoneOffset.UTC);
+
+    private final Config config;
+    private final NameFormat nameFormat;
+    private final AvailabilityIndex index;
+    /** Used to read smaller copies of the images. May be <code>null</code> */
+    private final RenditionCache renditions;
+    /** The {@link ImagePack} holding the images. May be <code>null</code> */
+    private final ImagePack pack;
+    /** Encoded images and composites, shared between requests */
+    private final ByteCache cache;
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Create a new {@link ImageServer}. Call {@link ImageServer#start()} to
+     * begin serving.
+     * 
+     * @param config
+     *            The {@link Config} defining the data path and layout
+     * @param nameFormat
+     *            The compiled {@link NameFormat} of the images
+     * @param index
+     *            The {@link AvailabilityIndex} of the images which exist
+     * @param renditions
+     *            A {@link RenditionCache} to read downscaled images from when
+     *            rendering composites, or <code>null</code>
+     * @param pack
+     *            The {@link ImagePack} holding the images, or
+     *            <code>null</code> if they are in the data path
+     * @param address
+     *            The address to listen on
+     * @param nThreads
+     *            The number of requests to handle at once
+     * @throws IOException
+     *             If the server cannot listen on the address
+     */
+    public ImageServer(Config config, NameFormat nameFormat, AvailabilityIndex index,
+            RenditionCache renditions, ImagePack pack, InetSocketAddress address,
+            int nThreads) throws IOException {
+        this.config = config;
+        this.nameFormat = nameFormat;
+        this.index = index;
+        this.renditions = renditions;
+        this.pack = pack;
+        this.cache = new ByteCache(config.getCacheSize() * 1024L * 1024L);
+
+        executor = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "nd-http-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                        ((Request) r).refuse();
+                    }
+                });
+
+        /*
+         * The server's own thread only reads each request and passes it to
+         * the executor, so it is never held up by serving one
+         */
+        server = HttpServer.create(address, 0);
+        server.createContext("/", new Endpoint() {
+            @Override
+            protected void serve(HttpExchange exchange) throws IOException {
+                if (!"/".equals(exchange.getRequestURI().getPath())) {
+                    sendError(exchange, 404, "Not found");
+                    return;
+                }
+                send(exchange, "text/html; charset=utf-8", null, 0L, buildIndexPage()
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        server.createContext("/dimensions", new Endpoint() {
+            @Override
+            protected void serve(HttpExchange exchange) throws IOException {
+                serveDimensions(exchange);
+            }
+        });
+        server.createContext("/available", new Endpoint() {
+            @Override
+            protected void serve(HttpExchange exchange) throws IOException {
+                serveAvailable(exchange);
+            }
+        });
+        server.createContext("/composite", new Endpoint() {
+            @Override
+            protected void serve(HttpExchange exchange) throws IOException {
+                serveComposite(exchange);
+            }
+        });
+        server.createContext("/images/", new Endpoint() {
+            @Override
+            protected void serve(HttpExchange exchange) throws IOException {
+                serveImage(exchange);
+            }
+        });
+    }
+
+    /**
+     * Starts serving requests
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops serving requests, waiting up to a second for those in progress
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /**
+     * @return The {@link ByteCache} shared between requests
+     */
+    public ByteCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Serves the selectable dimensions, their number of values and the first
+     * page of them
+     */
+    private void serveDimensions(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        List<Dimension> dimensions = config.getSelectableDimensions();
+        for (int i = 0; i < dimensions.size(); i++) {
+            Dimension dimension = dimensions.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":");
+            appendJson(json, dimension.getDimName());
+            json.append(",\"title\":");
+            appendJson(json, dimension.getDimTitle());
+            json.append(",\"size\":").append(dimension.getValues().size());
+            json.append(",\"values\":");
+            appendJson(json, index.getChoices(i, null));
+            json.append('}');
+        }
+        json.append(']');
+        send(exchange, "application/json", null, 0L,
+                json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Serves the values of each dimension which have images, given the
+     * values of the others. Long dimensions give a page of them around the
+     * selected value.
+     */
+    private void serveAvailable(HttpExchange exchange) throws IOException {
+        String[] selected = getSelection(exchange);
+        if (selected == null) {
+            sendError(exchange, 400, "A valid value must be given for every dimension");
+            return;
+        }
+        int[] selectedIndices = config.getCoordinateSpace().indicesOf(selected);
+        List<Dimension> dimensions = config.getSelectableDimensions();
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < dimensions.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendJson(json, dimensions.get(i).getDimName());
+            json.append(':');
+            appendJson(json, index.getChoices(i, selectedIndices));
+        }
+        json.append('}');
+        send(exchange, "application/json", null, 0L,
+                json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Serves the composite of the grid for a selection
+     */
+    private void serveComposite(HttpExchange exchange) throws IOException {
+        String[] selected = getSelection(exchange);
+        if (selected == null) {
+            sendError(exchange, 400, "A valid value must be given for every dimension");
+            return;
+        }
+        if (!index.hasImages(selected)) {
+            sendError(exchange, 404, "No images are available for this selection");
+            return;
+        }
+        Map<String, String> params = getParameters(exchange);
+        int width;
+        int height;
+        try {
+            width = getSize(params.get("width"), DEFAULT_WIDTH);
+            height = getSize(params.get("height"), DEFAULT_HEIGHT);
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "width and height must be integers");
+            return;
+        }
+
+        /*
+         * The composite changes if any of its images are changed, added or
+         * removed, so the tag is built from all of them
+         */
+        StringBuilder key = new StringBuilder("composite:" + width + "x" + height);
+        for (String value : selected) {
+            key.append('\u0000').append(value);
+        }
+        long lastModified = 0L;
+        long hash = 17L;
+        for (String value : config.getNonSelectableDimension().getValues()) {
+            String image = nameFormat.render(value, selected);
+            if (index.contains(image)) {
+                long imageModified = lastModified(new File(config.getPath() + image));
+                lastModified = Math.max(lastModified, imageModified);
+                hash = hash * 31L + image.hashCode();
+                hash = hash * 31L + imageModified;
+            }
+        }
+        String etag = "\"" + Integer.toHexString(key.toString().hashCode()) + "-"
+                + Long.toHexString(hash) + "\"";
+        if (isNotModified(exchange, etag, lastModified)) {
+            sendNotModified(exchange, etag, lastModified);
+            return;
+        }
+
+        byte[] png = cache.get(key.toString(), etag);
+        if (png == null) {
+            GridExporter exporter = new GridExporter(config, nameFormat, index, renditions,
+                    pack, null, width, height);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(exporter.render(selected), "png", out);
+            png = out.toByteArray();
+            cache.put(key.toString(), etag, png);
+        }
+        send(exchange, "image/png", etag, lastModified, png);
+    }
+
+    /**
+     * Serves a single image, by its path relative to the data path
+     */
+    private void serveImage(HttpExchange exchange) throws IOException {
+        String image = exchange.getRequestURI().getPath().substring("/images/".length());
+        /*
+         * Only images in the index are served, so no other files can be read
+         */
+        if (!index.contains(image)) {
+            sendError(exchange, 404, "Not found");
+            return;
+        }
+        File file = new File(config.getPath() + image);
+        long lastModified = lastModified(file);
+        String etag = "\"" + Long.toHexString(lastModified) + "-"
+                + Long.toHexString(pack == null ? file.length() : pack.getLength(file)) + "\"";
+        if (isNotModified(exchange, etag, lastModified)) {
+            sendNotModified(exchange, etag, lastModified);
+            return;
+        }
+
+        byte[] bytes = cache.get(image, etag);
+        if (bytes == null) {
+            bytes = pack == null ? Files.readAllBytes(file.toPath()) : pack.read(file);
+            cache.put(image, etag, bytes);
+        }
+        String contentType = URLConnection.guessContentTypeFromName(file.getName());
+        send(exchange, contentType == null ? "application/octet-stream" : contentType, etag,
+                lastModified, bytes);
+    }
+
+    /**
+     * @return The modification time of an image, from the {@link ImagePack}
+     *         if there is one
+     */
+    private long lastModified(File image) {
+        return pack == null ? image.lastModified() : pack.getLastModified(image);
+    }
+
+    /**
+     * Reads the selected values of each dimension from the query string
+     * 
+     * @return The values of the selectable {@link Dimension}s, or
+     *         <code>null</code> if any are missing or invalid
+     */
+    private String[] getSelection(HttpExchange exchange) throws UnsupportedEncodingException {
+        Map<String, String> params = getParameters(exchange);
+        List<Dimension> dimensions = config.getSelectableDimensions();
+        String[] selected = new String[dimensions.size()];
+        for (int i = 0; i < selected.length; i++) {
+            String value = params.get(dimensions.get(i).getDimName());
+            if (value == null || !dimensions.get(i).getValues().contains(value)) {
+                return null;
+            }
+            selected[i] = value;
+        }
+        return selected;
+    }
+
+    /**
+     * @return The parameters in the query string of a request
+     */
+    private static Map<String, String> getParameters(HttpExchange exchange)
+            throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(param.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * @param value
+     *            The requested width or height, or <code>null</code>
+     * @param defaultSize
+     *            The size to use if none was requested
+     * @return The size, limited to between 1 and {@link ImageServer#MAX_SIZE}
+     */
+    private static int getSize(String value, int defaultSize) {
+        if (value == null) {
+            return defaultSize;
+        }
+        return Math.max(1, Math.min(MAX_SIZE, Integer.parseInt(value)));
+    }
+
+    /**
+     * Checks the conditional headers of a request
+     * 
+     * @return <code>true</code> if the client's copy is up to date
+     */
+    private static boolean isNotModified(HttpExchange exchange, String etag, long lastModified) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals(etag) || tag.equals("W/" + etag) || tag.equals("*")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifModifiedSince != null && lastModified > 0L) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, HTTP_DATE).toEpochSecond();
+                /*
+                 * HTTP dates only have a resolution of one second
+                 */
+                return lastModified / 1000L <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static void sendNotModified(HttpExchange exchange, String etag, long lastModified)
+            throws IOException {
+        addCacheHeaders(exchange, etag, lastModified);
+        exchange.sendResponseHeaders(304, -1);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message)
+            throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void send(HttpExchange exchange, String contentType, String etag,
+            long lastModified, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        addCacheHeaders(exchange, etag, lastModified);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void addCacheHeaders(HttpExchange exchange, String etag, long lastModified) {
+        /*
+         * Images may be replaced while the server is running, so clients must
+         * check that their copy is still current before using it
+         */
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        if (etag != null) {
+            exchange.getResponseHeaders().set("ETag", etag);
+        }
+        if (lastModified > 0L) {
+            exchange.getResponseHeaders().set("Last-Modified",
+                    HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+        }
+    }
+
+    private static void appendJson(StringBuilder json, List<String> values) {
+        json.append('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendJson(json, values.get(i));
+        }
+        json.append(']');
+    }
+
+    private static void appendJson(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static String escapeHtml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;");
+    }
+
+    /**
+     * @return A page with a choice box for each dimension and the composite for
+     *         the current selection, which is updated as the choices change.
+     *         It starts with a selection which has images, and the choices are
+     *         filled in from <code>/available</code>.
+     */
+    private String buildIndexPage() {
+        StringBuilder html = new StringBuilder();
+        html.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\">"
+                + "<title>N-dimensional Image View</title><style>"
+                + "body{margin:0;background:#222;color:#eee;font-family:sans-serif}"
+                + "form{padding:8px}label{margin-right:16px}"
+                + "img{display:block;max-width:100%}</style></head><body><form>\n");
+        int[] initial = index.getAnyCombination();
+        if (initial == null) {
+            html.append("No images are available</form></body></html>\n");
+            return html.toString();
+        }
+        List<Dimension> dimensions = config.getSelectableDimensions();
+        for (int i = 0; i < dimensions.size(); i++) {
+            Dimension dimension = dimensions.get(i);
+            html.append("<label>").append(escapeHtml(dimension.getDimTitle()))
+                    .append(" <select name=\"").append(escapeHtml(dimension.getDimName()))
+                    .append("\"><option>")
+                    .append(escapeHtml(config.getCoordinateSpace().valueOf(i, initial[i])))
+                    .append("</option></select></label>\n");
+        }
+        html.append("</form><img id=\"composite\" alt=\"\">\n<script>\n"
+                + "var form = document.forms[0];\n"
+                + "function query() { return new URLSearchParams(new FormData(form)).toString(); }\n"
+                + "function update() {\n"
+                + "  fetch('available?' + query()).then(function(r) { return r.json(); })\n"
+                + "    .then(function(available) {\n"
+                + "      for (var i = 0; i < form.elements.length; i++) {\n"
+                + "        var select = form.elements[i], values = available[select.name];\n"
+                + "        var current = select.value;\n"
+                + "        select.options.length = 0;\n"
+                + "        if (values.indexOf(current) < 0) {\n"
+                + "          select.add(new Option(current, current, true, true));\n"
+                + "        }\n"
+                + "        for (var j = 0; j < values.length; j++) {\n"
+                + "          select.add(new Option(values[j], values[j], false, values[j] === current));\n"
+                + "        }\n"
+                + "      }\n"
+                + "    });\n"
+                + "  document.getElementById('composite').src = 'composite?' + query()\n"
+                + "    + '&width=' + window.innerWidth + '&height=' + (window.innerHeight - form.offsetHeight);\n"
+                + "}\n"
+                + "form.addEventListener('change', update);\n"
+                + "update();\n"
+                + "</script></body></html>\n");
+        return html.toString();
+    }
+
+    /**
+     * Handles GET and HEAD requests, reporting any errors to the client
+     */
+    private abstract class Endpoint implements HttpHandler {
+        /**
+         * Queues the request to be served by the executor. This is called on
+         * the server's thread, so does no more than that.
+         */
+        @Override
+        public void handle(HttpExchange exchange) {
+            executor.execute(new Request(this, exchange));
+        }
+
+        /**
+         * Serves a request on one of the executor's threads
+         */
+        private void respond(HttpExchange exchange) {
+            try {
+                String method = exchange.getRequestMethod();
+                if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                    exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                    sendError(exchange, 405, "Method not allowed");
+                    return;
+                }
+                serve(exchange);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Problem serving " + exchange.getRequestURI() + ": "
+                        + e.getMessage());
+                try {
+                    sendError(exchange, 500, "Internal error");
+                } catch (IOException | RuntimeException e2) {
+                    /*
+                     * The response has already started, or the client has gone
+                     */
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * Serves a request
+         * 
+         * @param exchange
+         *            The {@link HttpExchange} to respond to
+         * @throws IOException
+         *             If there is a problem reading data or sending the response
+         */
+        protected abstract void serve(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * A request waiting to be served by an {@link Endpoint}
+     */
+    private static class Request implements Runnable {
+        private final Endpoint endpoint;
+        private final HttpExchange exchange;
+
+        public Request(Endpoint endpoint, HttpExchange exchange) {
+            this.endpoint = endpoint;
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void run() {
+            endpoint.respond(exchange);
+        }
+
+        /**
+         * Tells the client that the server is too busy to serve the request
+         */
+        private void refuse() {
+            try {
+                exchange.getResponseHeaders().set("Retry-After",
+                        String.valueOf(RETRY_AFTER_SECONDS));
+                sendError(exchange, 503, "Too many requests, try again shortly");
+            } catch (IOException | RuntimeException e) {
+                /*
+                 * The client has gone
+                 */
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compact file recording which images are present, so that the data path
+ * does not need to be scanned in full every time the viewer is started.
+ * 
+ * The file stores the contents of each directory in the data path along with
+ * the directory's modification time. When it is loaded, only directories
+ * whose modification time has changed (i.e. which have had entries added or
+ * removed) are listed again. Directories are checked in parallel using a
+ * {@link ForkJoinPool}. The whole file is discarded if the path, name format or
+ * dimensions in the config have changed.
+ *
+ * @author Guy Griffiths
+ */
+public class IndexFile {
+    /** Identifies an index file */
+    private static final int MAGIC = 0x4e44494e;
+    /** The version of the file format */
+    private static final int VERSION = 1;
+    /**
+     * Directories modified more recently than this may still have entries
+     * added within the resolution of the filesystem's timestamps, so we don't
+     * trust their modification times
+     */
+    private static final long SETTLE_MS = 2000L;
+
+    /** The location of the index file */
+    private final File file;
+    /** The root of the data */
+    private final File dataPath;
+    /** The compiled {@link NameFormat} which images must match */
+    private final NameFormat nameFormat;
+    /** All dimensions - the selectable ones followed by the non-selectable one */
+    private final List<Dimension> dimensions;
+    /** A hash of the parts of the config which affect the index */
+    private final long configHash;
+
+    /** The number of threads to check directories with */
+    private final int parallelism;
+    /** Notified as directories are checked. May be <code>null</code> */
+    private final DirectoryScanner.ProgressListener listener;
+
+    /** The number of directories which were listed during the last load */
+    private final AtomicInteger dirsListed = new AtomicInteger(0);
+    /** The number of directories whose contents were read from the file */
+    private final AtomicInteger dirsReused = new AtomicInteger(0);
+
+    /**
+     * @param file
+     *            The location of the index file
+     * @param config
+     *            The {@link Config} defining the data path, dimensions and
+     *            number of threads to scan with
+     * @param nameFormat
+     *            The compiled {@link NameFormat} which images must match
+     * @param listener
+     *            A {@link DirectoryScanner.ProgressListener} to notify as
+     *            directories are checked, or <code>null</code>
+     */
+    public IndexFile(File file, Config config, NameFormat nameFormat,
+            DirectoryScanner.ProgressListener listener) {
+        this.file = file;
+        this.dataPath = new File(config.getPath());
+        this.nameFormat = nameFormat;
+        this.parallelism = config.getScanThreads();
+        this.listener = listener;
+
+        dimensions = new ArrayList<>(config.getSelectableDimensions());
+        dimensions.add(config.getNonSelectableDimension());
+        configHash = hashConfig(config);
+    }
+
+    /**
+     * Finds all of the images present, using the index file where possible,
+     * and updates the index file if anything has changed
+     * 
+     * @return A {@link Map} of the path of each image found (relative to the
+     *         data path) to its dimension values, as returned by
+     *         {@link NameFormat#parse(String)}
+     */
+    public Map<String, String[]> load() {
+        final Map<String, DirRecord> previous = read();
+        final Map<String, DirRecord> current = new ConcurrentHashMap<>();
+        final Map<String, String[]> found = new ConcurrentHashMap<>();
+        dirsListed.set(0);
+        dirsReused.set(0);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new WalkTask("", nameFormat.getDepth(), previous, current, found));
+        } finally {
+            pool.shutdown();
+        }
+
+        if (dirsListed.get() > 0 || previous.size() != current.size()) {
+            try {
+                write(current);
+            } catch (IOException e) {
+                System.out.println("Could not save the image index to " + file + ": "
+                        + e.getMessage());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the images in a directory, reusing the previous contents if it has
+     * not been modified, and forks tasks for its subdirectories
+     */
+    private class WalkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String relativeDir;
+        private final int depth;
+        private final Map<String, DirRecord> previous;
+        private final Map<String, DirRecord> current;
+        private final Map<String, String[]> found;
+
+        /**
+         * @param relativeDir
+         *            The directory relative to the data path, either empty or
+         *            ending with a "/"
+         * @param depth
+         *            The maximum number of path segments remaining
+         * @param previous
+         *            The directory contents read from the index file
+         * @param current
+         *            The {@link Map} to add the current directory contents to
+         * @param found
+         *            The {@link Map} to add images to
+         */
+        public WalkTask(String relativeDir, int depth, Map<String, DirRecord> previous,
+                Map<String, DirRecord> current, Map<String, String[]> found) {
+            this.relativeDir = relativeDir;
+            this.depth = depth;
+            this.previous = previous;
+            this.current = current;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            File dir = new File(dataPath, relativeDir);
+            /*
+             * Get the modification time before listing, so that anything added
+             * whilst we are listing will cause a rescan next time
+             */
+            long lastModified = dir.lastModified();
+            DirRecord record = previous.get(relativeDir);
+            if (record == null || record.lastModified != lastModified || lastModified == 0L) {
+                record = list(dir, relativeDir, depth, lastModified);
+                dirsListed.incrementAndGet();
+            } else {
+                dirsReused.incrementAndGet();
+            }
+            if (System.currentTimeMillis() - lastModified < SETTLE_MS) {
+                record.lastModified = 0L;
+            }
+            current.put(relativeDir, record);
+
+            for (int[] image : record.images) {
+                String[] coords = new String[image.length];
+                for (int i = 0; i < image.length; i++) {
+                    coords[i] = image[i] < 0 ? null : dimensions.get(i).getValues()
+                            .get(image[i]);
+                }
+                String[] selectable = new String[coords.length - 1];
+                System.arraycopy(coords, 0, selectable, 0, selectable.length);
+                /*
+                 * Dimensions which aren't in the name format are null, but they
+                 * don't affect the name either, so any value will do
+                 */
+                for (int i = 0; i < selectable.length; i++) {
+                    if (selectable[i] == null) {
+                        selectable[i] = "";
+                    }
+                }
+                found.put(nameFormat.render(coords[coords.length - 1], selectable), coords);
+            }
+            if (listener != null) {
+                listener.progress(dirsListed.get() + dirsReused.get(), found.size());
+            }
+
+            List<WalkTask> subtasks = new ArrayList<>();
+            for (String subdir : record.subdirs) {
+                subtasks.add(new WalkTask(relativeDir + subdir + "/", depth - 1, previous,
+                        current, found));
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    /**
+     * Lists the contents of a directory
+     * 
+     * @param dir
+     *            The directory to list
+     * @param relativeDir
+     *            The directory relative to the data path
+     * @param depth
+     *            The maximum number of path segments remaining
+     * @param lastModified
+     *            The modification time of the directory
+     * @return A {@link DirRecord} containing the images and subdirectories
+     */
+    private DirRecord list(File dir, String relativeDir, int depth, long lastModified) {
+        DirRecord record = new DirRecord(lastModified);
+        String[] contents = dir.list();
+        if (contents == null) {
+            return record;
+        }
+        for (String name : contents) {
+            if (depth > 1 && new File(dir, name).isDirectory()) {
+                record.subdirs.add(name);
+                continue;
+            }
+            String[] coords = nameFormat.parse(relativeDir + name);
+            if (coords != null) {
+                int[] image = new int[coords.length];
+                for (int i = 0; i < coords.length; i++) {
+                    image[i] = coords[i] == null ? -1 : dimensions.get(i).getValues()
+                            .indexOf(coords[i]);
+                }
+                record.images.add(image);
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Reads the index file
+     * 
+     * @return The directory contents stored in the file, or an empty
+     *         {@link Map} if the file is missing, unreadable or out of date
+     */
+    private Map<String, DirRecord> read() {
+        Map<String, DirRecord> records = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != configHash) {
+                return records;
+            }
+            int nDims = dimensions.size();
+            int nDirs = in.readInt();
+            for (int d = 0; d < nDirs; d++) {
+                String relativeDir = in.readUTF();
+                DirRecord record = new DirRecord(in.readLong());
+                int nSubdirs = readVarInt(in);
+                for (int i = 0; i < nSubdirs; i++) {
+                    record.subdirs.add(in.readUTF());
+                }
+                int nImages = readVarInt(in);
+                for (int i = 0; i < nImages; i++) {
+                    int[] image = new int[nDims];
+                    for (int j = 0; j < nDims; j++) {
+                        image[j] = readVarInt(in) - 1;
+                    }
+                    record.images.add(image);
+                }
+                records.put(relativeDir, record);
+            }
+        } catch (FileNotFoundException e) {
+            /*
+             * No index yet
+             */
+        } catch (IOException e) {
+            System.out.println("Could not read the image index from " + file
+                    + ", so the data path will be scanned in full");
+            records.clear();
+        }
+        return records;
+    }
+
+    /**
+     * Writes the index file
+     * 
+     * @param records
+     *            The contents of each directory
+     * @throws IOException
+     *             If the file cannot be written
+     */
+    private void write(Map<String, DirRecord> records) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(configHash);
+            out.writeInt(records.size());
+            for (Map.Entry<String, DirRecord> entry : records.entrySet()) {
+                DirRecord record = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(record.lastModified);
+                writeVarInt(out, record.subdirs.size());
+                for (String subdir : record.subdirs) {
+                    out.writeUTF(subdir);
+                }
+                writeVarInt(out, record.images.size());
+                for (int[] image : record.images) {
+                    for (int index : image) {
+                        writeVarInt(out, index + 1);
+                    }
+                }
+            }
+        }
+        if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Writes a non-negative integer using as few bytes as possible
+     */
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads an integer written by
+     * {@link IndexFile#writeVarInt(DataOutputStream, int)}
+     */
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed index file");
+    }
+
+    /**
+     * Calculates a hash of everything in the config which affects the contents
+     * of the index
+     * 
+     * @param config
+     *            The {@link Config}
+     * @return The hash
+     */
+    private long hashConfig(Config config) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(config.getPath().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(config.getNameFormat().getBytes(StandardCharsets.UTF_8));
+            for (Dimension dimension : dimensions) {
+                digest.update((byte) 1);
+                digest.update(dimension.getDimName().getBytes(StandardCharsets.UTF_8));
+                /*
+                 * Ranges are hashed by their declaration, so that they need
+                 * not be expanded
+                 */
+                List<String> values = dimension.getValues();
+                if (values instanceof DimensionValues) {
+                    values = ((DimensionValues) values).getDeclaration();
+                }
+                for (String value : values) {
+                    digest.update((byte) 0);
+                    digest.update(value.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            byte[] hash = digest.digest();
+            long result = 0L;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (hash[i] & 0xff);
+            }
+            return result;
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * All Java implementations are required to support SHA-1
+             */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The number of directories which had to be listed during the last
+     *         call to {@link IndexFile#load()}
+     */
+    public int getDirsListed() {
+        return dirsListed.get();
+    }
+
+    /**
+     * @return The number of directories whose contents were read from the
+     *         index file during the last call to {@link IndexFile#load()}
+     */
+    public int getDirsReused() {
+        return dirsReused.get();
+    }
+
+    /**
+     * The contents of a single directory
+     */
+    private static class DirRecord {
+        private long lastModified;
+        private final List<String> subdirs = new ArrayList<>();
+        private final List<int[]> images = new ArrayList<>();
+
+        public DirRecord(long lastModified) {
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records a distribution of durations with very little overhead, so that it
+ * can be left running all the time.
+ * 
+ * Durations are counted in buckets whose upper bounds are successive powers
+ * of two nanoseconds, so percentiles are accurate to within a factor of two.
+ * Recording is lock-free and never allocates.
+ *
+ * @author Guy Griffiths
+ */
+public class LatencyHistogram {
+    /** The number of durations in each bucket */
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong(0L);
+    private final AtomicLong totalNanos = new AtomicLong(0L);
+    private final AtomicLong maxNanos = new AtomicLong(0L);
+
+    /**
+     * Records a duration
+     * 
+     * @param nanos
+     *            The duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0L) {
+            nanos = 0L;
+        }
+        /*
+         * Bucket i holds durations of less than 2^i ns
+         */
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos)) {
+            /*
+             * Another thread updated the maximum, so check again
+             */
+        }
+    }
+
+    /**
+     * @return The number of durations recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The mean duration, in milliseconds
+     */
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0L ? 0.0 : totalNanos.get() / (n * 1e6);
+    }
+
+    /**
+     * @return The longest duration, in milliseconds
+     */
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * @param percentile
+     *            The percentile to find, between 0 and 100
+     * @return An upper bound on the given percentile of the durations, in
+     *         milliseconds
+     */
+    public double getPercentileMillis(double percentile) {
+        long n = count.get();
+        if (n == 0L) {
+            return 0.0;
+        }
+        long target = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0L;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                /*
+                 * The maximum is a tighter bound for the top bucket
+                 */
+                return Math.min(Math.pow(2.0, i), maxNanos.get()) / 1e6;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", getCount(),
+                getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99),
+                getMaxMillis());
+    }
+}
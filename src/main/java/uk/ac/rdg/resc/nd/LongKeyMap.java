@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+/**
+ * A hash map with primitive <code>long</code> keys, so that looking up a key
+ * does not allocate. Entries are stored in open-addressed arrays with linear
+ * probing, which are doubled in size when they become more than half full.
+ * Values may not be <code>null</code>.
+ * 
+ * This is not thread-safe - callers must synchronise access themselves.
+ * 
+ * @param <V>
+ *            The type of the values
+ *
+ * @author Guy Griffiths
+ */
+public class LongKeyMap<V> {
+    /** The keys of the entries, at the slots given by their hashes */
+    private long[] keys;
+    /** The values of the entries, or <code>null</code> for empty slots */
+    private Object[] values;
+    /** The number of entries */
+    private int size = 0;
+
+    /**
+     * Creates an empty map
+     */
+    public LongKeyMap() {
+        keys = new long[16];
+        values = new Object[16];
+    }
+
+    /**
+     * @param key
+     *            The key to look up
+     * @return The value for the key, or <code>null</code> if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int slot = find(key);
+        return (V) values[slot];
+    }
+
+    /**
+     * @param key
+     *            The key to look up
+     * @return Whether there is a value for the key
+     */
+    public boolean containsKey(long key) {
+        return values[find(key)] != null;
+    }
+
+    /**
+     * Sets the value for a key
+     * 
+     * @param key
+     *            The key
+     * @param value
+     *            The value, which may not be <code>null</code>
+     */
+    public void put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Values may not be null");
+        }
+        int slot = find(key);
+        if (values[slot] == null) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+                slot = find(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Removes the value for a key, if there is one
+     * 
+     * @param key
+     *            The key
+     */
+    public void remove(long key) {
+        int slot = find(key);
+        if (values[slot] == null) {
+            return;
+        }
+        values[slot] = null;
+        size--;
+        /*
+         * Move any later entries in the same run back into the gap, so that
+         * they can still be found from their home slots
+         */
+        int mask = keys.length - 1;
+        int gap = slot;
+        for (int i = (slot + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                values[i] = null;
+                gap = i;
+            }
+        }
+    }
+
+    /**
+     * @return The number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The slot holding the key, or the empty slot where it would go
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Moves the entries into arrays of a new length
+     */
+    private void resize(int length) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[length];
+        values = new Object[length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of a key, since packed keys often differ only in a few
+     */
+    private static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
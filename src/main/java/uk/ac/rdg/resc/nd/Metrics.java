@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timings describing where the time goes when a new selection is
+ * displayed: resolving the image paths, checking which exist, reading and
+ * decoding the images, and updating the views and choices. They are published
+ * as a JMX MBean (visible in e.g. JConsole as
+ * <code>uk.ac.rdg.resc.nd:type=Metrics</code>), and can be written to the
+ * console periodically.
+ * 
+ * Everything is recorded with atomic counters and {@link LatencyHistogram}s,
+ * so the overhead is small enough to leave on all the time.
+ *
+ * @author Guy Griffiths
+ */
+public class Metrics implements MetricsMBean {
+    /** The name the MBean is registered under */
+    private static final String OBJECT_NAME = "uk.ac.rdg.resc.nd:type=Metrics";
+
+    /** The {@link AvailabilityIndex} which answers existence checks */
+    private final AvailabilityIndex index;
+    /** The {@link ImageCache} of decoded images */
+    private final ImageCache cache;
+
+    private final AtomicLong pathResolutions = new AtomicLong(0L);
+    private final AtomicLong bytesRead = new AtomicLong(0L);
+    private final AtomicLong partialSwaps = new AtomicLong(0L);
+    private final LatencyHistogram decodeTimes = new LatencyHistogram();
+    private final LatencyHistogram selectionTimes = new LatencyHistogram();
+    private final LatencyHistogram repopulateTimes = new LatencyHistogram();
+
+    /** Writes the metrics to the console, if enabled */
+    private ScheduledExecutorService logger = null;
+    /** The name the MBean was registered under, if it was */
+    private ObjectName registeredName = null;
+
+    /**
+     * @param index
+     *            The {@link AvailabilityIndex} which answers existence checks
+     * @param cache
+     *            The {@link ImageCache} of decoded images
+     */
+    public Metrics(AvailabilityIndex index, ImageCache cache) {
+        this.index = index;
+        this.cache = cache;
+    }
+
+    /**
+     * Publishes the metrics over JMX
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            System.out.println("Cannot publish metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the metrics to the console at a fixed interval
+     * 
+     * @param intervalSeconds
+     *            The interval between writing the metrics, in seconds
+     */
+    public void startLogging(int intervalSeconds) {
+        logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nd-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        logger.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println("Metrics: " + Metrics.this);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops logging and removes the MBean
+     */
+    public void shutdown() {
+        if (logger != null) {
+            logger.shutdownNow();
+        }
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                /*
+                 * We are shutting down anyway
+                 */
+            }
+        }
+    }
+
+    /**
+     * Records that an image path has been resolved
+     */
+    public void pathResolved() {
+        pathResolutions.incrementAndGet();
+    }
+
+    /**
+     * Records that an image has been read and decoded
+     * 
+     * @param bytes
+     *            The size of the file read
+     * @param nanos
+     *            The time taken to read and decode it, in nanoseconds
+     */
+    public void imageDecoded(long bytes, long nanos) {
+        bytesRead.addAndGet(bytes);
+        decodeTimes.record(nanos);
+    }
+
+    /**
+     * Records that all of the images for a selection have been displayed
+     * 
+     * @param nanos
+     *            The time since the selection was made, in nanoseconds
+     */
+    public void selectionDisplayed(long nanos) {
+        selectionTimes.record(nanos);
+    }
+
+    /**
+     * Records that a selection's images were shown before they had all loaded,
+     * because they took longer than the swap budget
+     */
+    public void partialSwap() {
+        partialSwaps.incrementAndGet();
+    }
+
+    /**
+     * Records that the dimension choices have been repopulated
+     * 
+     * @param nanos
+     *            The time taken, in nanoseconds
+     */
+    public void choicesRepopulated(long nanos) {
+        repopulateTimes.record(nanos);
+    }
+
+    @Override
+    public long getPathResolutions() {
+        return pathResolutions.get();
+    }
+
+    @Override
+    public long getExistenceChecks() {
+        return index.getStatsSaved();
+    }
+
+    @Override
+    public int getIndexSize() {
+        return index.size();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getImagesDecoded() {
+        return decodeTimes.getCount();
+    }
+
+    @Override
+    public double getDecodeMeanMillis() {
+        return decodeTimes.getMeanMillis();
+    }
+
+    @Override
+    public double getDecodeP99Millis() {
+        return decodeTimes.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getDecodeMaxMillis() {
+        return decodeTimes.getMaxMillis();
+    }
+
+    @Override
+    public long getSelections() {
+        return selectionTimes.getCount();
+    }
+
+    @Override
+    public double getSelectionMeanMillis() {
+        return selectionTimes.getMeanMillis();
+    }
+
+    @Override
+    public double getSelectionP99Millis() {
+        return selectionTimes.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getSelectionMaxMillis() {
+        return selectionTimes.getMaxMillis();
+    }
+
+    @Override
+    public long getPartialSwaps() {
+        return partialSwaps.get();
+    }
+
+    @Override
+    public double getRepopulateMeanMillis() {
+        return repopulateTimes.getMeanMillis();
+    }
+
+    @Override
+    public double getRepopulateMaxMillis() {
+        return repopulateTimes.getMaxMillis();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    @Override
+    public long getCachePrefetchHits() {
+        return cache.getPrefetchHits();
+    }
+
+    @Override
+    public long getCachePrefetchMisses() {
+        return cache.getPrefetchMisses();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cache.getEvictions();
+    }
+
+    @Override
+    public long getCacheResidentBytes() {
+        return cache.getResidentBytes();
+    }
+
+    @Override
+    public String toString() {
+        return pathResolutions.get() + " paths resolved, " + index.getStatsSaved()
+                + " existence checks, " + (bytesRead.get() / 1024) + "KB read; decode ["
+                + decodeTimes + "]; selection to display [" + selectionTimes + "], "
+                + partialSwaps.get() + " partial swaps; repopulate choices [" + repopulateTimes
+                + "]; cache [" + cache + "]";
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+/**
+ * The management interface of {@link Metrics}, as published over JMX. Times
+ * are in milliseconds.
+ *
+ * @author Guy Griffiths
+ */
+public interface MetricsMBean {
+    /** @return The number of image paths which have been resolved */
+    public long getPathResolutions();
+
+    /** @return The number of existence checks answered by the index */
+    public long getExistenceChecks();
+
+    /** @return The number of images in the index */
+    public int getIndexSize();
+
+    /** @return The number of bytes of image files read */
+    public long getBytesRead();
+
+    /** @return The number of images decoded */
+    public long getImagesDecoded();
+
+    /** @return The mean time taken to decode an image */
+    public double getDecodeMeanMillis();
+
+    /** @return An upper bound on the 99th percentile of decode times */
+    public double getDecodeP99Millis();
+
+    /** @return The longest time taken to decode an image */
+    public double getDecodeMaxMillis();
+
+    /** @return The number of selections whose images have all been displayed */
+    public long getSelections();
+
+    /** @return The mean time from a selection to all of its images being displayed */
+    public double getSelectionMeanMillis();
+
+    /** @return An upper bound on the 99th percentile of selection times */
+    public double getSelectionP99Millis();
+
+    /** @return The longest time from a selection to its images being displayed */
+    public double getSelectionMaxMillis();
+
+    /** @return The number of selections shown before all of their images had loaded */
+    public long getPartialSwaps();
+
+    /** @return The mean time taken to repopulate the dimension choices */
+    public double getRepopulateMeanMillis();
+
+    /** @return The longest time taken to repopulate the dimension choices */
+    public double getRepopulateMaxMillis();
+
+    /**
+     * @return The number of times an image to be shown was found in the image
+     *         cache
+     */
+    public long getCacheHits();
+
+    /**
+     * @return The number of times an image to be shown was not found in the
+     *         image cache
+     */
+    public long getCacheMisses();
+
+    /**
+     * @return The number of times an image to be prefetched was already in
+     *         the image cache
+     */
+    public long getCachePrefetchHits();
+
+    /**
+     * @return The number of times an image to be prefetched was not in the
+     *         image cache, and so was loaded
+     */
+    public long getCachePrefetchMisses();
+
+    /** @return The number of images evicted from the image cache */
+    public long getCacheEvictions();
+
+    /** @return The estimated number of bytes occupied by the image cache */
+    public long getCacheResidentBytes();
+}
@@ -31,19 +31,30 @@ package uk.ac.rdg.resc.nd;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.HPos;
 import javafx.geometry.Insets;
+import javafx.geometry.Pos;
 import javafx.geometry.VPos;
+import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.ColumnConstraints;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.Region;
 import javafx.scene.layout.RowConstraints;
+import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import uk.ac.rdg.resc.nd.Config.ConfigException;
 
@@ -53,48 +64,397 @@ import uk.ac.rdg.resc.nd.Config.ConfigException;
  * @author Guy Griffiths
  */
 public class NDImageView extends Application {
-    private static final int GAP = 8;
-    private static final int BORDER = 4;
+    static final int GAP = 8;
+    static final int BORDER = 4;
+
+    /** The default size of exported composites */
+    private static final String DEFAULT_EXPORT_SIZE = "1920x1080";
+    /** The default port to serve images on */
+    private static final int DEFAULT_PORT = 8080;
 
     public static void main(String[] args) {
+        List<String> argList = Arrays.asList(args);
+        if (argList.contains("--build-cache")) {
+            buildCache();
+            return;
+        }
+        int packArg = argList.indexOf("--build-pack");
+        if (packArg >= 0) {
+            if (packArg + 1 >= args.length) {
+                System.out.println("Usage: --build-pack <pack file>");
+                return;
+            }
+            buildPack(args[packArg + 1]);
+            return;
+        }
+        int exportArg = argList.indexOf("--export");
+        if (exportArg >= 0) {
+            if (exportArg + 1 >= args.length) {
+                System.out
+                        .println("Usage: --export <output directory> [--size <width>x<height>]");
+                return;
+            }
+            int sizeArg = argList.indexOf("--size");
+            exportGrids(args[exportArg + 1], sizeArg >= 0 && sizeArg + 1 < args.length
+                    ? args[sizeArg + 1] : DEFAULT_EXPORT_SIZE);
+            return;
+        }
+        int serveArg = argList.indexOf("--serve");
+        if (serveArg >= 0) {
+            int port = DEFAULT_PORT;
+            if (serveArg + 1 < args.length && !args[serveArg + 1].startsWith("--")) {
+                try {
+                    port = Integer.parseInt(args[serveArg + 1]);
+                } catch (NumberFormatException e) {
+                    System.out.println("Usage: --serve [port]");
+                    return;
+                }
+            }
+            serve(port);
+            return;
+        }
         launch(args);
     }
 
-    @Override
-    public void start(Stage primaryStage) {
-        /*
-         * Load the config file or output a useful error message and quit
-         */
-        Config conf;
+    /**
+     * Load the config file or output a useful error message
+     * 
+     * @return The {@link Config}, or <code>null</code> if it could not be
+     *         loaded
+     */
+    private static Config loadConfig() {
         try {
-            conf = new Config(new File("settings.cfg"));
+            return new Config(new File("settings.cfg"));
         } catch (ConfigException e) {
             System.out.println("Problem with settings.cfg: ");
             System.out.println(e.getMessage());
-            primaryStage.close();
-            return;
         } catch (FileNotFoundException e) {
             System.out
                     .println("No settings.cfg present.  A file named \"settings.cfg\" should be present in the same directory as this program");
-            primaryStage.close();
-            return;
         } catch (IOException e) {
             System.out.println("Problem reading settings.cfg present.  Stack trace follows:");
             e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Opens the image pack, if the data path refers to one
+     * 
+     * @param conf
+     *            The {@link Config} defining the data path
+     * @return The {@link ImagePack}, or <code>null</code> if the data path is a
+     *         directory
+     * @throws IOException
+     *             If the pack cannot be read
+     */
+    private static ImagePack openPack(Config conf) throws IOException {
+        if (!conf.isPack()) {
+            return null;
+        }
+        ImagePack pack = new ImagePack(new File(conf.getPath()));
+        System.out.println("Opened image pack " + pack);
+        return pack;
+    }
+
+    /**
+     * Builds downscaled copies of every image in the dataset, so that the
+     * viewer can use them from the first time it is opened
+     */
+    private static void buildCache() {
+        Config conf = loadConfig();
+        if (conf == null) {
+            return;
+        }
+        if (conf.getDiskCachePath() == null) {
+            System.out
+                    .println("No disk cache defined - you must set \"disk_cache_path = ...\" in settings.cfg to build one");
+            return;
+        }
+        if (conf.isPack()) {
+            System.out.println("Images in a pack are not copied to the disk cache");
+            return;
+        }
+        AvailabilityIndex index = AvailabilityIndex.create(conf, new NameFormat(conf), null,
+                null);
+        List<File> images = new ArrayList<>();
+        for (String image : index.getImages()) {
+            images.add(new File(conf.getPath() + image));
+        }
+        RenditionCache renditions = new RenditionCache(new File(conf.getDiskCachePath()),
+                conf.getDiskCacheSize() * 1024L * 1024L);
+        try {
+            renditions.buildAll(images, Runtime.getRuntime().availableProcessors());
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted while building the disk cache");
+        }
+        renditions.shutdown();
+    }
+
+    /**
+     * Copies every image in the dataset into an {@link ImagePack}, or adds new
+     * and changed images to an existing one
+     * 
+     * @param packFile
+     *            The pack to write
+     */
+    private static void buildPack(String packFile) {
+        Config conf = loadConfig();
+        if (conf == null) {
+            return;
+        }
+        if (conf.isPack()) {
+            System.out
+                    .println("The data path is already a pack - it must be set to the directory containing the images");
+            return;
+        }
+        AvailabilityIndex index = AvailabilityIndex.create(conf, new NameFormat(conf), null,
+                null);
+        PackBuilder builder = new PackBuilder(new File(conf.getPath()), new File(packFile),
+                Math.max(4, Runtime.getRuntime().availableProcessors()));
+        try {
+            builder.build(index.getImages());
+        } catch (IOException e) {
+            System.out.println("Problem building image pack: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted while building the image pack");
+        }
+    }
+
+    /**
+     * Renders the grid to a PNG file for every selection which has images,
+     * without opening a window
+     * 
+     * @param outputDir
+     *            The directory to write the files to
+     * @param size
+     *            The size of each file, of the form "widthxheight"
+     */
+    private static void exportGrids(String outputDir, String size) {
+        System.setProperty("java.awt.headless", "true");
+        String[] widthHeight = size.toLowerCase().split("x");
+        int width;
+        int height;
+        try {
+            width = Integer.parseInt(widthHeight[0].trim());
+            height = Integer.parseInt(widthHeight[1].trim());
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("The export size must be of the form \"1920x1080\"");
+            return;
+        }
+        if (width <= 0 || height <= 0) {
+            System.out.println("The export size must be positive");
+            return;
+        }
+
+        Config conf = loadConfig();
+        if (conf == null) {
+            return;
+        }
+        ImagePack pack;
+        try {
+            pack = openPack(conf);
+        } catch (IOException e) {
+            System.out.println("Cannot read image pack: " + e.getMessage());
+            return;
+        }
+        NameFormat nameFormat = new NameFormat(conf);
+        AvailabilityIndex index = AvailabilityIndex.create(conf, nameFormat, pack, null);
+        RenditionCache renditions = null;
+        if (conf.getDiskCachePath() != null && pack == null) {
+            renditions = new RenditionCache(new File(conf.getDiskCachePath()),
+                    conf.getDiskCacheSize() * 1024L * 1024L);
+        }
+        GridExporter exporter = new GridExporter(conf, nameFormat, index, renditions, pack,
+                new File(outputDir), width, height);
+        try {
+            exporter.exportAll(Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+            System.out.println("Problem exporting images: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted while exporting images");
+        }
+        if (renditions != null) {
+            renditions.shutdown();
+        }
+    }
+
+    /**
+     * Serves the images and composites of the grid over HTTP, without opening
+     * a window. This returns once the server has started; it runs until the
+     * process is killed.
+     * 
+     * @param port
+     *            The port to listen on
+     */
+    private static void serve(int port) {
+        System.setProperty("java.awt.headless", "true");
+        Config conf = loadConfig();
+        if (conf == null) {
+            return;
+        }
+        ImagePack pack;
+        try {
+            pack = openPack(conf);
+        } catch (IOException e) {
+            System.out.println("Cannot read image pack: " + e.getMessage());
+            return;
+        }
+        NameFormat nameFormat = new NameFormat(conf);
+        AvailabilityIndex index = AvailabilityIndex.create(conf, nameFormat, pack, null);
+        RenditionCache renditions = null;
+        if (conf.getDiskCachePath() != null && pack == null) {
+            renditions = new RenditionCache(new File(conf.getDiskCachePath()),
+                    conf.getDiskCacheSize() * 1024L * 1024L);
+        }
+        if (conf.isWatchData() && pack == null) {
+            try {
+                new DataWatcher(conf, nameFormat, index, new Runnable() {
+                    @Override
+                    public void run() {
+                        /*
+                         * Responses are validated against the files, so there
+                         * is nothing else to update
+                         */
+                    }
+                }).start();
+            } catch (IOException e) {
+                System.out.println("Cannot watch for new images: " + e.getMessage());
+            }
+        }
+        try {
+            ImageServer server = new ImageServer(conf, nameFormat, index, renditions, pack,
+                    new InetSocketAddress(port), Math.max(4, Runtime.getRuntime()
+                            .availableProcessors()));
+            server.start();
+            System.out.println("Serving " + index.size() + " images on http://localhost:"
+                    + port + "/");
+        } catch (IOException e) {
+            System.out.println("Cannot serve on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void start(final Stage primaryStage) {
+        /*
+         * Load the config file or quit
+         */
+        final Config conf = loadConfig();
+        if (conf == null) {
             primaryStage.close();
             return;
         }
 
+        primaryStage.setTitle("N-dimensional Image View");
+
+        /*
+         * Show the progress of the scan whilst the data path is indexed in the
+         * background
+         */
+        final Label progress = new Label("Scanning data...");
+        ProgressBar bar = new ProgressBar();
+        VBox box = new VBox(GAP, progress, bar);
+        box.setAlignment(Pos.CENTER);
+        box.setPadding(new Insets(BORDER));
+        primaryStage.setScene(new Scene(box, 300, 100));
+        primaryStage.show();
+
+        final AtomicBoolean updatePending = new AtomicBoolean(false);
+        final DirectoryScanner.ProgressListener listener = new DirectoryScanner.ProgressListener() {
+            @Override
+            public void progress(final long directories, final long images) {
+                /*
+                 * Only queue an update if the last one has been shown, so that
+                 * a fast scan doesn't flood the FX thread
+                 */
+                if (updatePending.compareAndSet(false, true)) {
+                    Platform.runLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            updatePending.set(false);
+                            progress.setText("Scanning data: " + directories
+                                    + " directories, " + images + " images");
+                        }
+                    });
+                }
+            }
+        };
+
+        Thread scan = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ImagePack pack;
+                try {
+                    pack = openPack(conf);
+                } catch (final IOException e) {
+                    Platform.runLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            progress.setText("Cannot read image pack: " + e.getMessage());
+                        }
+                    });
+                    return;
+                }
+                final NameFormat nameFormat;
+                final AvailabilityIndex index;
+                try {
+                    nameFormat = new NameFormat(conf);
+                    index = AvailabilityIndex.create(conf, nameFormat, pack, listener);
+                } catch (final Throwable e) {
+                    /*
+                     * Otherwise the progress would be shown forever
+                     */
+                    System.out.println("Cannot scan data: " + e);
+                    if (pack != null) {
+                        pack.close();
+                    }
+                    Platform.runLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            progress.setText("Cannot scan data: " + e);
+                        }
+                    });
+                    return;
+                }
+                Platform.runLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        showViewer(conf, nameFormat, index, pack, primaryStage);
+                    }
+                });
+            }
+        }, "nd-index-scan");
+        scan.setDaemon(true);
+        scan.start();
+    }
+
+    /**
+     * Lays out the images and variable selector once the data has been indexed
+     * 
+     * @param conf
+     *            The {@link Config} defining the layout
+     * @param nameFormat
+     *            The compiled {@link NameFormat} of the images
+     * @param index
+     *            The {@link AvailabilityIndex} of the images which exist
+     * @param pack
+     *            The {@link ImagePack} holding the images, or
+     *            <code>null</code> if they are files in the data path
+     * @param primaryStage
+     *            The main {@link Stage} of the application
+     */
+    private void showViewer(final Config conf, NameFormat nameFormat, AvailabilityIndex index,
+            ImagePack pack, Stage primaryStage) {
         /*
          * Create the controller and selector view
          */
-        ImageController controller = new ImageController(conf, primaryStage);
+        ImageController controller = new ImageController(conf, nameFormat, index, pack,
+                primaryStage);
         VariableSelector selector = new VariableSelector(controller);
 
         /*
          * General application settings
          */
-        primaryStage.setTitle("N-dimensional Image View");
         primaryStage.setFullScreen(true);
 
         /*
@@ -202,7 +562,17 @@ public class NDImageView extends Application {
         grid.setPrefSize(WINDOW_WIDTH, WINDOW_HEIGHT);
         grid.setMaxSize(Region.USE_COMPUTED_SIZE, Region.USE_COMPUTED_SIZE);
 
-        Scene scene = new Scene(grid, WINDOW_WIDTH, WINDOW_HEIGHT);
+        /*
+         * The frame time overlay sits above the top-left of the grid
+         */
+        Parent root = grid;
+        if (controller.getWatchdog() != null) {
+            Label overlay = controller.getWatchdog().getOverlay();
+            root = new StackPane(grid, overlay);
+            StackPane.setAlignment(overlay, Pos.TOP_LEFT);
+        }
+
+        Scene scene = new Scene(root, WINDOW_WIDTH, WINDOW_HEIGHT);
         scene.getStylesheets().add(getClass().getResource("/nd-image-view.css").toExternalForm());
         primaryStage.setScene(scene);
         primaryStage.show();
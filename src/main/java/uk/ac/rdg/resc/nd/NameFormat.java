@@ -0,0 +1,414 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled version of the name format defined in the config.
+ * 
+ * The name format is parsed once into a series of literal sections and
+ * dimension variables, so that rendering the name of an image is a simple
+ * matter of appending strings, rather than performing a regular expression
+ * replacement for each dimension.
+ * 
+ * It can also be used in reverse, to extract the dimension values from the
+ * name of an existing image.
+ *
+ * @author Guy Griffiths
+ */
+public class NameFormat {
+    /** Used to indicate that a variable has no optional character */
+    private static final char NO_OPTIONAL_CHAR = '\0';
+
+    /** The name format this was compiled from */
+    private final String format;
+    /**
+     * The literal text before each variable. This has one more element than
+     * the number of variables - the final element is the text after the last
+     * variable
+     */
+    private final String[] literals;
+    /**
+     * The index of the dimension for each variable. Indices refer to the
+     * selectable dimensions, with the non-selectable dimension having the
+     * index equal to the number of selectable dimensions
+     */
+    private final int[] varDims;
+    /**
+     * The character preceding each variable which should be omitted if the
+     * variable is empty, or {@link NameFormat#NO_OPTIONAL_CHAR}
+     */
+    private final char[] optionalChars;
+    /** The number of selectable dimensions */
+    private final int nSelectable;
+    /** Whether each dimension appears at least once in the name format */
+    private final boolean[] dimUsed;
+    /** A regular expression which matches names in this format */
+    private final Pattern pattern;
+    /**
+     * The values which each variable must be checked against once matched,
+     * or <code>null</code> if the regular expression only matches valid values
+     */
+    private final List<List<String>> valuesToCheck = new ArrayList<>();
+
+    /** A buffer for rendering names, so that we don't need to create one each time */
+    private final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+
+    /**
+     * Compile the name format from a {@link Config}
+     * 
+     * @param config
+     *            The {@link Config} containing the name format and dimensions
+     */
+    public NameFormat(Config config) {
+        this(config.getNameFormat(), config.getSelectableDimensions(), config
+                .getNonSelectableDimension());
+    }
+
+    /**
+     * Compile a name format
+     * 
+     * @param format
+     *            The name format, as described in the README
+     * @param selectableDimensions
+     *            The selectable {@link Dimension}s
+     * @param nonSelectableDimension
+     *            The {@link Dimension} which varies across the screen
+     */
+    public NameFormat(String format, List<Dimension> selectableDimensions,
+            Dimension nonSelectableDimension) {
+        this.format = format;
+        this.nSelectable = selectableDimensions.size();
+
+        List<String> literalList = new ArrayList<>();
+        List<Integer> dimList = new ArrayList<>();
+        List<Character> optionalList = new ArrayList<>();
+
+        StringBuilder literal = new StringBuilder();
+        int pos = 0;
+        while (pos < format.length()) {
+            int start = format.indexOf("${", pos);
+            int end = start < 0 ? -1 : format.indexOf('}', start);
+            if (end < 0) {
+                break;
+            }
+            String dimName = format.substring(start + 2, end);
+            int dim = -1;
+            for (int i = 0; i < nSelectable; i++) {
+                if (selectableDimensions.get(i).getDimName().equals(dimName)) {
+                    dim = i;
+                    break;
+                }
+            }
+            if (dim < 0 && nonSelectableDimension.getDimName().equals(dimName)) {
+                dim = nSelectable;
+            }
+            if (dim < 0) {
+                /*
+                 * Not a dimension we know about. Leave it in place, as the
+                 * regular expression replacement used to
+                 */
+                literal.append(format, pos, end + 1);
+                pos = end + 1;
+                continue;
+            }
+
+            /*
+             * Name format strings can have a character which should be omitted
+             * if it immediately precedes an empty dimension, indicated by a
+             * question mark
+             */
+            int literalEnd = start;
+            char optional = NO_OPTIONAL_CHAR;
+            if (start > pos && format.charAt(start - 1) == '?') {
+                literalEnd--;
+                if (literalEnd > pos) {
+                    literalEnd--;
+                    optional = format.charAt(literalEnd);
+                }
+            }
+            literal.append(format, pos, literalEnd);
+            literalList.add(literal.toString());
+            dimList.add(dim);
+            optionalList.add(optional);
+
+            literal.setLength(0);
+            pos = end + 1;
+        }
+        literal.append(format, pos, format.length());
+        literalList.add(literal.toString());
+
+        literals = literalList.toArray(new String[literalList.size()]);
+        varDims = new int[dimList.size()];
+        optionalChars = new char[optionalList.size()];
+        dimUsed = new boolean[nSelectable + 1];
+        for (int i = 0; i < varDims.length; i++) {
+            varDims[i] = dimList.get(i);
+            optionalChars[i] = optionalList.get(i);
+            dimUsed[varDims[i]] = true;
+        }
+
+        /*
+         * Now build the regular expression for matching existing names. Each
+         * variable becomes a capturing group containing the valid values of
+         * its dimension.
+         */
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < varDims.length; i++) {
+            regex.append(Pattern.quote(literals[i]));
+            List<String> values = varDims[i] == nSelectable ? nonSelectableDimension.getValues()
+                    : selectableDimensions.get(varDims[i]).getValues();
+            valuesToCheck.add(hasRanges(values) ? values : null);
+            if (optionalChars[i] != NO_OPTIONAL_CHAR) {
+                /*
+                 * The optional character is only present if the value is not
+                 * empty
+                 */
+                String nonEmptyValues = valuesRegex(values, false);
+                if (nonEmptyValues != null) {
+                    regex.append("(?:");
+                    regex.append(Pattern.quote(String.valueOf(optionalChars[i])));
+                    regex.append(nonEmptyValues);
+                    regex.append(values.contains("") ? ")?" : ")");
+                } else {
+                    regex.append("()");
+                }
+            } else {
+                String allValues = valuesRegex(values, true);
+                regex.append(allValues == null ? "()" : allValues);
+            }
+        }
+        regex.append(Pattern.quote(literals[varDims.length]));
+        pattern = Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Creates a capturing group which matches any of the given values
+     * 
+     * @param values
+     *            The values to match
+     * @param allowEmpty
+     *            Whether an empty value should be matched, if present
+     * @return A regular expression, or <code>null</code> if there are no
+     *         values to match
+     */
+    private static String valuesRegex(List<String> values, boolean allowEmpty) {
+        List<String> sorted = new ArrayList<>();
+        List<String> rangePatterns = new ArrayList<>();
+        List<String> explicitValues = values;
+        if (hasRanges(values)) {
+            /*
+             * Ranges may have too many values to list, so they are matched by
+             * their shape, and checked once matched
+             */
+            explicitValues = ((DimensionValues) values).getExplicitValues();
+            rangePatterns = ((DimensionValues) values).getRangePatterns();
+        }
+        boolean hasEmpty = false;
+        for (String value : explicitValues) {
+            if (value.isEmpty()) {
+                hasEmpty = true;
+            } else {
+                sorted.add(value);
+            }
+        }
+        if (sorted.isEmpty() && rangePatterns.isEmpty()) {
+            return null;
+        }
+        /*
+         * Try the longest values first, so that a value which is a prefix of
+         * another is not matched in preference
+         */
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String s1, String s2) {
+                return s2.length() - s1.length();
+            }
+        });
+        StringBuilder group = new StringBuilder("(");
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i > 0) {
+                group.append('|');
+            }
+            group.append(Pattern.quote(sorted.get(i)));
+        }
+        for (String rangePattern : rangePatterns) {
+            if (group.length() > 1) {
+                group.append('|');
+            }
+            group.append("(?:").append(rangePattern).append(')');
+        }
+        if (allowEmpty && hasEmpty) {
+            group.append('|');
+        }
+        group.append(')');
+        return group.toString();
+    }
+
+    /**
+     * @return Whether the values include any {@link DimensionValues.Range}s
+     */
+    private static boolean hasRanges(List<String> values) {
+        return values instanceof DimensionValues && ((DimensionValues) values).hasRanges();
+    }
+
+    /**
+     * Renders the name of an image
+     * 
+     * @param nonSelectableValue
+     *            The value for the non-selectable {@link Dimension}
+     * @param selectableValues
+     *            The values for the selectable {@link Dimension}s, in the same
+     *            order as they were supplied when compiling
+     * @return The name of the image, relative to the data path
+     */
+    public String render(String nonSelectableValue, String... selectableValues) {
+        StringBuilder sb = buffer.get();
+        sb.setLength(0);
+        appendTo(sb, nonSelectableValue, selectableValues);
+        return sb.toString();
+    }
+
+    /**
+     * Renders the name of an image into an existing {@link StringBuilder}
+     * 
+     * @param sb
+     *            The {@link StringBuilder} to append the name to
+     * @param nonSelectableValue
+     *            The value for the non-selectable {@link Dimension}
+     * @param selectableValues
+     *            The values for the selectable {@link Dimension}s, in the same
+     *            order as they were supplied when compiling
+     */
+    public void appendTo(StringBuilder sb, String nonSelectableValue, String... selectableValues) {
+        for (int i = 0; i < varDims.length; i++) {
+            sb.append(literals[i]);
+            int dim = varDims[i];
+            String value = dim == nSelectable ? nonSelectableValue : selectableValues[dim];
+            if (!value.isEmpty()) {
+                if (optionalChars[i] != NO_OPTIONAL_CHAR) {
+                    sb.append(optionalChars[i]);
+                }
+                sb.append(value);
+            }
+        }
+        sb.append(literals[varDims.length]);
+    }
+
+    /**
+     * Extracts the dimension values from the name of an image
+     * 
+     * @param name
+     *            The name of the image, relative to the data path
+     * @return An array containing the values of the selectable dimensions, in
+     *         the same order as they were supplied when compiling, followed by
+     *         the value of the non-selectable dimension. Dimensions which do
+     *         not appear in the name format have a <code>null</code> value.
+     *         If the name does not match this format, <code>null</code> is
+     *         returned.
+     */
+    public String[] parse(String name) {
+        Matcher m = pattern.matcher(name);
+        if (!m.matches()) {
+            return null;
+        }
+        String[] values = new String[nSelectable + 1];
+        for (int i = 0; i < varDims.length; i++) {
+            String value = m.group(i + 1);
+            if (value == null) {
+                /*
+                 * An omitted optional section
+                 */
+                value = "";
+            }
+            List<String> validValues = valuesToCheck.get(i);
+            if (validValues != null && !value.isEmpty() && !validValues.contains(value)) {
+                /*
+                 * The right shape for a range, but not one of its values
+                 */
+                return null;
+            }
+            String existing = values[varDims[i]];
+            if (existing != null && !existing.equals(value)) {
+                /*
+                 * The same dimension appears more than once with different
+                 * values
+                 */
+                return null;
+            }
+            values[varDims[i]] = value;
+        }
+        return values;
+    }
+
+    /**
+     * @param dim
+     *            The index of the dimension, with the non-selectable dimension
+     *            having the index equal to the number of selectable dimensions
+     * @return Whether the dimension appears in the name format
+     */
+    public boolean usesDimension(int dim) {
+        return dimUsed[dim];
+    }
+
+    /**
+     * @return The maximum number of path segments in names of this format
+     */
+    public int getDepth() {
+        int depth = 1;
+        for (String literal : literals) {
+            for (int i = 0; i < literal.length(); i++) {
+                if (literal.charAt(i) == '/') {
+                    depth++;
+                }
+            }
+        }
+        for (char optionalChar : optionalChars) {
+            if (optionalChar == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    @Override
+    public String toString() {
+        return format;
+    }
+}
@@ -0,0 +1,526 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import uk.ac.rdg.resc.nd.ImagePack.PackEntry;
+
+/**
+ * Writes images from the data path into an {@link ImagePack}, or brings an
+ * existing pack up to date.
+ * 
+ * The images are read on several threads, so that the latency of network
+ * storage is overlapped, and written to the end of the pack in sequence by the
+ * calling thread. Images are read into a fixed set of direct buffers, so only
+ * a few are held in memory at once, and none of them on the heap.
+ * 
+ * The pack is valid at all times. New images are written after the existing
+ * contents, followed by a new index, and only once those have been flushed
+ * and their checksums verified is the header changed to point at the new
+ * index. This is done after every {@link PackBuilder#CHECKPOINT_BYTES} bytes
+ * or {@link PackBuilder#CHECKPOINT_INTERVAL_MS} milliseconds, so if building
+ * is interrupted it can be run again, and only images written since the last
+ * checkpoint are read again. Images which are already in the pack are only
+ * read again if their modification time or size has changed, so adding new
+ * images to a large pack is quick. Replaced images and old indexes are left in
+ * the file as unused space; deleting the pack and building it again removes
+ * it.
+ *
+ * @author Guy Griffiths
+ */
+public class PackBuilder {
+    /** The amount of image data to write between checkpoints */
+    private static final long CHECKPOINT_BYTES = 1L << 30;
+    /**
+     * The longest time between checkpoints. Each one leaves the previous index
+     * in the file, so they are not made too often.
+     */
+    private static final long CHECKPOINT_INTERVAL_MS = 60 * 1000L;
+    /** The initial size of each read buffer */
+    private static final int BUFFER_SIZE = 1 << 20;
+    /**
+     * Buffers which have grown beyond this size to fit a large image are not
+     * reused
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 16 << 20;
+    /**
+     * How long to wait for the reading threads to stop once building has
+     * finished, before freeing their buffers
+     */
+    private static final long SHUTDOWN_TIMEOUT_MS = 10 * 1000L;
+
+    /** The directory containing the images */
+    private final File dataPath;
+    /** The pack to write */
+    private final File packFile;
+    /** The number of threads to read images with */
+    private final int nThreads;
+
+    /** The images in the pack when building started, keyed by path */
+    private Map<String, PackEntry> previous = new HashMap<>();
+    /** The images in the pack as of the last checkpoint, keyed by path */
+    private final Map<String, PackEntry> entries = new HashMap<>();
+    /** The images written since the last checkpoint, keyed by path */
+    private final Map<String, PackEntry> written = new HashMap<>();
+    /** The open pack file */
+    private FileChannel channel;
+    /** The position to write the next image at */
+    private long end;
+    /** The amount of image data written since the last checkpoint */
+    private long bytesSinceCheckpoint = 0L;
+    /** The time of the last checkpoint */
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    private int nAdded = 0;
+    private int nUnchanged = 0;
+    private int nFailed = 0;
+    private long bytesAdded = 0L;
+
+    /**
+     * @param dataPath
+     *            The directory containing the images
+     * @param packFile
+     *            The pack to write. If it already exists, it is brought up to
+     *            date rather than replaced.
+     * @param nThreads
+     *            The number of threads to read images with
+     */
+    public PackBuilder(File dataPath, File packFile, int nThreads) {
+        this.dataPath = dataPath;
+        this.packFile = packFile;
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * Writes images into the pack. Once this returns, the pack contains
+     * exactly the given images.
+     * 
+     * @param images
+     *            The paths of the images to pack, relative to the data path
+     * @throws IOException
+     *             If the pack cannot be written, or an image does not match
+     *             its checksum once written. The pack is left as it was at the
+     *             last checkpoint.
+     * @throws InterruptedException
+     *             If interrupted while waiting for images to be read
+     */
+    public void build(Collection<String> images) throws IOException, InterruptedException {
+        if (packFile.isFile() && packFile.length() > 0) {
+            /*
+             * Refuses to overwrite anything which isn't a pack
+             */
+            ImagePack existing = new ImagePack(packFile);
+            previous = new HashMap<>(existing.getEntries());
+            end = existing.getIndexEnd();
+            existing.close();
+        } else {
+            end = ImagePack.HEADER_SIZE;
+        }
+        entries.putAll(previous);
+
+        channel = FileChannel.open(packFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(nThreads * 2);
+        BlockingQueue<ReadImage> results = new LinkedBlockingQueue<>();
+        try {
+            if (previous.isEmpty()) {
+                /*
+                 * Make the new file a valid (empty) pack straight away
+                 */
+                checkpoint();
+            }
+
+            for (int i = 0; i < nThreads * 2; i++) {
+                buffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+            }
+            /*
+             * Sorting keeps images from the same directory together
+             */
+            Set<String> names = new TreeSet<>(images);
+            for (String name : names) {
+                executor.submit(new ReadTask(name, buffers, results));
+            }
+
+            for (int i = 0; i < names.size(); i++) {
+                ReadImage result = results.take();
+                if (result.error != null) {
+                    nFailed++;
+                    System.out.println("Cannot read " + result.name + ": " + result.error);
+                } else if (result.data == null) {
+                    nUnchanged++;
+                } else {
+                    write(result);
+                    recycle(result.data, buffers);
+                    long sinceCheckpoint = System.currentTimeMillis() - lastCheckpoint;
+                    if (bytesSinceCheckpoint >= CHECKPOINT_BYTES
+                            || sinceCheckpoint >= CHECKPOINT_INTERVAL_MS) {
+                        checkpoint();
+                        System.out.println("Packed " + (i + 1) + " of " + names.size()
+                                + " images");
+                    }
+                }
+            }
+
+            /*
+             * Drop anything which is no longer in the data path
+             */
+            int nRemoved = 0;
+            for (String name : new ArrayList<>(entries.keySet())) {
+                if (!names.contains(name)) {
+                    entries.remove(name);
+                    nRemoved++;
+                }
+            }
+            if (nAdded > 0 || nRemoved > 0 || previous.isEmpty()) {
+                checkpoint();
+            }
+            channel.truncate(end);
+
+            System.out.println("Packed " + entries.size() + " images into " + packFile + ": "
+                    + nAdded + " added (" + (bytesAdded / (1024 * 1024)) + "MB), "
+                    + nUnchanged + " unchanged, " + nRemoved + " removed, " + nFailed
+                    + " could not be read");
+        } finally {
+            executor.shutdownNow();
+            channel.close();
+            releaseBuffers(executor, buffers, results);
+        }
+    }
+
+    /**
+     * Frees the read buffers once the reading threads have stopped, whether
+     * or not building succeeded. Otherwise the buffers of images which have
+     * been read but not written would only be freed when they are garbage
+     * collected, which may not happen until direct memory has run out.
+     */
+    private static void releaseBuffers(ExecutorService executor,
+            BlockingQueue<ByteBuffer> buffers, BlockingQueue<ReadImage> results) {
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                /*
+                 * A reader may still be using its buffer, so leave them all
+                 * to the garbage collector
+                 */
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        ReadImage result;
+        while ((result = results.poll()) != null) {
+            free(result.data);
+        }
+        ByteBuffer buffer;
+        while ((buffer = buffers.poll()) != null) {
+            free(buffer);
+        }
+    }
+
+    /**
+     * Returns a buffer to the pool once its image has been written, or frees
+     * it and replaces it with one of the usual size if it has grown to fit a
+     * large image. The number of buffers stays the same, so there is always
+     * room for it.
+     */
+    private static void recycle(ByteBuffer buffer, BlockingQueue<ByteBuffer> buffers) {
+        if (buffer.capacity() > MAX_POOLED_BUFFER_SIZE) {
+            free(buffer);
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Frees the memory of a direct buffer straight away, rather than when it
+     * is garbage collected. The buffer must not be used afterwards. If the JVM
+     * does not allow this, the memory is left to the garbage collector.
+     */
+    private static void free(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                /*
+                 * Java 8, where direct buffers expose their cleaner
+                 */
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(buffer);
+                if (c != null) {
+                    c.getClass().getMethod("clean").invoke(c);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            /*
+             * Left to the garbage collector
+             */
+        }
+    }
+
+    /**
+     * Writes an image at the end of the pack. It is not part of the pack until
+     * the next checkpoint.
+     */
+    private void write(ReadImage image) throws IOException {
+        long offset = end;
+        ByteBuffer data = image.data;
+        int length = data.remaining();
+        while (data.hasRemaining()) {
+            end += channel.write(data, end);
+        }
+        written.put(image.name, new PackEntry(offset, length, image.crc, image.lastModified));
+        bytesSinceCheckpoint += length;
+        bytesAdded += length;
+        nAdded++;
+    }
+
+    /**
+     * Makes the images written so far part of the pack. They are flushed to
+     * disk and checked against their checksums, then a new index is written
+     * and the header is changed to point at it.
+     */
+    private void checkpoint() throws IOException {
+        channel.force(false);
+        verify();
+        entries.putAll(written);
+        written.clear();
+        bytesSinceCheckpoint = 0L;
+        lastCheckpoint = System.currentTimeMillis();
+
+        long indexOffset = end;
+        channel.position(indexOffset);
+        /*
+         * Not closed, since that would close the channel
+         */
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels
+                .newOutputStream(channel), 1 << 16));
+        out.writeInt(entries.size());
+        for (Entry<String, PackEntry> entry : entries.entrySet()) {
+            PackEntry packEntry = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(packEntry.offset);
+            out.writeInt(packEntry.length);
+            out.writeInt(packEntry.crc);
+            out.writeLong(packEntry.lastModified);
+        }
+        out.flush();
+        long indexLength = channel.position() - indexOffset;
+        end = indexOffset + indexLength;
+        channel.force(false);
+
+        ByteBuffer header = ByteBuffer.allocate(ImagePack.HEADER_SIZE);
+        header.putInt(ImagePack.MAGIC);
+        header.putInt(ImagePack.VERSION);
+        header.putLong(indexOffset);
+        header.putLong(indexLength);
+        header.putLong(0L);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+    }
+
+    /**
+     * Reads back the images written since the last checkpoint, and checks
+     * them against the checksums of the originals
+     * 
+     * @throws IOException
+     *             If any do not match
+     */
+    private void verify() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        CRC32 crc = new CRC32();
+        for (Entry<String, PackEntry> entry : written.entrySet()) {
+            PackEntry packEntry = entry.getValue();
+            if (buffer.capacity() < packEntry.length) {
+                free(buffer);
+                buffer = ByteBuffer.allocateDirect(packEntry.length);
+            }
+            buffer.clear();
+            buffer.limit(packEntry.length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, packEntry.offset + buffer.position()) < 0) {
+                    throw new IOException(packFile + " is shorter than expected");
+                }
+            }
+            buffer.flip();
+            crc.reset();
+            crc.update(buffer);
+            if ((int) crc.getValue() != packEntry.crc) {
+                free(buffer);
+                throw new IOException("Checksum of " + entry.getKey() + " in " + packFile
+                        + " does not match the original");
+            }
+        }
+        free(buffer);
+    }
+
+    /**
+     * Reads an image into a buffer, unless it is already in the pack
+     */
+    private class ReadTask implements Runnable {
+        private final String name;
+        private final BlockingQueue<ByteBuffer> buffers;
+        private final BlockingQueue<ReadImage> results;
+
+        public ReadTask(String name, BlockingQueue<ByteBuffer> buffers,
+                BlockingQueue<ReadImage> results) {
+            this.name = name;
+            this.buffers = buffers;
+            this.results = results;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ReadImage result;
+                try {
+                    result = read();
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    /*
+                     * Anything at all, including running out of direct
+                     * memory, must still be reported, or build() would wait
+                     * for this image forever
+                     */
+                    result = new ReadImage(name, null, 0, 0L, e.toString());
+                }
+                results.put(result);
+            } catch (InterruptedException e) {
+                /*
+                 * Building has been abandoned
+                 */
+            }
+        }
+
+        private ReadImage read() throws InterruptedException {
+            File file = new File(dataPath, name);
+            long lastModified = file.lastModified();
+            long length = file.length();
+            PackEntry existing = previous.get(name);
+            if (existing != null && existing.lastModified == lastModified
+                    && existing.length == length) {
+                return new ReadImage(name, null, 0, lastModified, null);
+            }
+            if (length > Integer.MAX_VALUE) {
+                return new ReadImage(name, null, 0, lastModified, "Too large to pack");
+            }
+
+            ByteBuffer buffer = buffers.take();
+            try {
+                if (buffer.capacity() < length) {
+                    ByteBuffer larger = ByteBuffer.allocateDirect((int) length);
+                    free(buffer);
+                    buffer = larger;
+                }
+                buffer.clear();
+                buffer.limit((int) length);
+                try (FileChannel in = FileChannel.open(file.toPath(),
+                        StandardOpenOption.READ)) {
+                    while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+                        /*
+                         * Keep reading until we have the whole file
+                         */
+                    }
+                } catch (IOException e) {
+                    recycle(buffer, buffers);
+                    return new ReadImage(name, null, 0, lastModified, e.getMessage());
+                }
+                buffer.flip();
+                CRC32 crc = new CRC32();
+                crc.update(buffer);
+                buffer.rewind();
+                return new ReadImage(name, buffer, (int) crc.getValue(), lastModified, null);
+            } catch (RuntimeException | Error e) {
+                /*
+                 * Keep the pool the same size
+                 */
+                recycle(buffer, buffers);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The result of reading an image
+     */
+    private static class ReadImage {
+        final String name;
+        /** The contents, or <code>null</code> if it is already in the pack */
+        final ByteBuffer data;
+        final int crc;
+        final long lastModified;
+        /** Why the image could not be read, or <code>null</code> */
+        final String error;
+
+        public ReadImage(String name, ByteBuffer data, int crc, long lastModified, String error) {
+            this.name = name;
+            this.data = data;
+            this.crc = crc;
+            this.lastModified = lastModified;
+            this.error = error;
+        }
+    }
+}
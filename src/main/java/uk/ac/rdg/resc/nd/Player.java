@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+/**
+ * Plays through the values of one dimension, showing each whole grid in turn
+ * at a target frame rate, looping back to the start at the end.
+ * 
+ * The grids ahead of the one being shown are decoded in the background into a
+ * ring of frames, so that each one can be shown as soon as it is due, without
+ * waiting for it to load. When a frame is due but has not finished loading,
+ * the current one is held until it has. If a later frame has already loaded
+ * by then, the frames before it are dropped to keep to time. The frame rate
+ * actually achieved is measured, so it can be compared with the target.
+ * 
+ * All methods should be called from the JavaFX application thread.
+ *
+ * @author Guy Griffiths
+ */
+public class Player {
+    /** The interval over which the achieved frame rate is measured */
+    private static final long RATE_INTERVAL_NANOS = 1000000000L;
+
+    /** The {@link ImageController} used to find the images of each frame */
+    private final ImageController controller;
+    /** The {@link ImageLoader} used to decode the images */
+    private final ImageLoader loader;
+    /** A {@link Map} of non-selectable dimension value to {@link ImageView} */
+    private final Map<String, ImageView> views;
+    /** The index of the dimension being played through */
+    private final int dimension;
+    /** The values of the selectable dimensions when playback started */
+    private final String[] startCoords;
+    /** The values of the dimension to play through */
+    private final List<String> values;
+    /** The index in the values of the frame shown when playback started */
+    private final int startIndex;
+    /** The target time between frames */
+    private final long frameInterval;
+    /** The frames ahead of the current one, indexed by frame number */
+    private final Frame[] ring;
+    /** Called each time a new frame is shown */
+    private final Runnable frameListener;
+    /** The threads which decode the frames */
+    private final ExecutorService executor;
+    /** Checks whether a new frame is due on every pulse */
+    private final AnimationTimer timer;
+
+    /** The number of the frame being shown. Frame 0 is the starting selection */
+    private long current = 0L;
+    /** When the next frame is due, or 0 before the first pulse */
+    private long nextFrameTime = 0L;
+    /** The number of frames skipped to keep to time */
+    private long dropped = 0L;
+    /** When playback started */
+    private long playStart = 0L;
+    /** When the last frame was shown */
+    private long lastShown = 0L;
+    /** The start of the current frame rate measurement */
+    private long rateStart = 0L;
+    /** The number of frames shown since the start of the measurement */
+    private int rateFrames = 0;
+    /** The frame rate achieved over the last measurement */
+    private double achievedFps = 0.0;
+
+    /**
+     * @param controller
+     *            The {@link ImageController} used to find the images of each
+     *            frame
+     * @param loader
+     *            The {@link ImageLoader} used to decode the images
+     * @param views
+     *            A {@link Map} of non-selectable dimension value to the
+     *            {@link ImageView} which displays it
+     * @param dimension
+     *            The index of the selectable dimension to play through
+     * @param coords
+     *            The currently selected values of the selectable dimensions
+     * @param values
+     *            The values of the dimension to play through, in order
+     * @param fps
+     *            The target frame rate
+     * @param bufferSize
+     *            The number of frames to load ahead of the current one
+     * @param nThreads
+     *            The number of threads to decode frames with
+     * @param frameListener
+     *            A {@link Runnable} to call each time a new frame is shown
+     */
+    public Player(ImageController controller, ImageLoader loader, Map<String, ImageView> views,
+            int dimension, String[] coords, List<String> values, double fps, int bufferSize,
+            int nThreads, Runnable frameListener) {
+        this.controller = controller;
+        this.loader = loader;
+        this.views = views;
+        this.dimension = dimension;
+        this.startCoords = coords.clone();
+        this.values = values;
+        this.startIndex = Math.max(0, values.indexOf(coords[dimension]));
+        this.frameInterval = (long) (1e9 / fps);
+        this.ring = new Frame[bufferSize];
+        this.frameListener = frameListener;
+        executor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nd-playback-loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                pulse(now);
+            }
+        };
+    }
+
+    /**
+     * Starts loading frames, and shows them as they become due
+     */
+    public void start() {
+        for (long number = 1; number <= ring.length; number++) {
+            load(number);
+        }
+        timer.start();
+    }
+
+    /**
+     * Stops playback, leaving the current frame shown
+     */
+    public void stop() {
+        timer.stop();
+        executor.shutdownNow();
+        long shown = current - dropped;
+        double seconds = (lastShown - playStart) / 1e9;
+        System.out.println("Played " + shown + " frames at "
+                + String.format("%.1f", seconds > 0 ? shown / seconds : 0.0) + " fps (target "
+                + String.format("%.1f", 1e9 / frameInterval) + "), " + dropped + " dropped");
+    }
+
+    /**
+     * @return The values of the selectable dimensions in the frame being
+     *         shown
+     */
+    public String[] getCoords() {
+        return getCoords(current);
+    }
+
+    /**
+     * @return The frame rate achieved over the last second of playback, or 0
+     *         if playback has only just started
+     */
+    public double getAchievedFps() {
+        return achievedFps;
+    }
+
+    /**
+     * @return The target frame rate
+     */
+    public double getTargetFps() {
+        return 1e9 / frameInterval;
+    }
+
+    /**
+     * @return The number of frames which have been skipped to keep to time
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return The values of the selectable dimensions in the given frame
+     */
+    private String[] getCoords(long number) {
+        String[] coords = startCoords.clone();
+        coords[dimension] = values.get((int) ((startIndex + number) % values.size()));
+        return coords;
+    }
+
+    /**
+     * Decodes the images for a frame in the background, and puts it in the
+     * ring
+     */
+    private void load(long number) {
+        final Frame frame = new Frame(number, getCoords(number));
+        final Map<ImageView, ImageLoader.Request> requests = new HashMap<>();
+        for (Entry<String, ImageView> view : views.entrySet()) {
+            File path = controller.getPath(view.getKey(), frame.coords);
+            ImageView imageView = view.getValue();
+            if (path != null && imageView.getFitWidth() > 0 && imageView.getFitHeight() > 0) {
+                requests.put(imageView, new ImageLoader.Request(path, imageView.getFitWidth(),
+                        imageView.getFitHeight()));
+            } else {
+                frame.images.put(imageView, null);
+            }
+        }
+        ring[(int) (number % ring.length)] = frame;
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (Entry<ImageView, ImageLoader.Request> request : requests.entrySet()) {
+                    frame.images.put(request.getKey(), loader.getImage(request.getValue()));
+                }
+                frame.ready = true;
+            }
+        });
+    }
+
+    /**
+     * Shows a new frame if one is due and has been loaded
+     * 
+     * @param now
+     *            The time of the pulse, in nanoseconds
+     */
+    private void pulse(long now) {
+        if (nextFrameTime == 0L) {
+            nextFrameTime = now + frameInterval;
+            playStart = now;
+            rateStart = now;
+            return;
+        }
+        if (now < nextFrameTime) {
+            return;
+        }
+
+        /*
+         * Show the latest loaded frame which is due. If none are, hold the
+         * current one
+         */
+        int due = (int) Math.min(ring.length, 1 + (now - nextFrameTime) / frameInterval);
+        Frame next = null;
+        for (long number = current + due; number > current; number--) {
+            Frame frame = ring[(int) (number % ring.length)];
+            if (frame.ready) {
+                next = frame;
+                break;
+            }
+        }
+        if (next == null) {
+            return;
+        }
+
+        for (Entry<ImageView, Image> image : next.images.entrySet()) {
+            image.getKey().setImage(image.getValue());
+        }
+        dropped += next.number - current - 1;
+        /*
+         * The slots of the frames we've passed are reused for the frames
+         * further ahead
+         */
+        long lastAhead = next.number + ring.length;
+        for (long number = current + ring.length + 1; number <= lastAhead; number++) {
+            load(number);
+        }
+        nextFrameTime += (next.number - current) * frameInterval;
+        if (nextFrameTime <= now) {
+            /*
+             * We've been held up, so carry on from now rather than rushing to
+             * catch up
+             */
+            nextFrameTime = now + frameInterval;
+        }
+        current = next.number;
+        lastShown = now;
+
+        rateFrames++;
+        if (now - rateStart >= RATE_INTERVAL_NANOS) {
+            achievedFps = rateFrames * 1e9 / (now - rateStart);
+            rateFrames = 0;
+            rateStart = now;
+        }
+        frameListener.run();
+    }
+
+    /**
+     * The decoded images of one grid
+     */
+    private static class Frame {
+        private final long number;
+        private final String[] coords;
+        /** Only read once the frame is ready */
+        private final Map<ImageView, Image> images = new HashMap<>();
+        private volatile boolean ready = false;
+
+        public Frame(long number, String[] coords) {
+            this.number = number;
+            this.coords = coords;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads images which are likely to be viewed next into the {@link ImageCache}
+ * on a low-priority background thread.
+ * 
+ * Since the user changes one dimension at a time, the next selection is almost
+ * always one step away from the current one. Each call to
+ * {@link Prefetcher#prefetch(List)} supersedes the previous one.
+ *
+ * @author Guy Griffiths
+ */
+public class Prefetcher {
+    /** The {@link ImageLoader} used to read and cache images */
+    private final ImageLoader loader;
+    /** The maximum number of images to prefetch for each selection */
+    private final int maxImages;
+    /** The thread which prefetches images */
+    private final ExecutorService executor;
+    /** The ID of the most recent request */
+    private final AtomicLong currentRequest = new AtomicLong(0L);
+    /** The task for the most recent request */
+    private Future<?> pending = null;
+
+    /**
+     * @param loader
+     *            The {@link ImageLoader} used to read and cache images
+     * @param maxImages
+     *            The maximum number of images to prefetch for each selection.
+     *            If this is zero, no prefetching is done
+     */
+    public Prefetcher(ImageLoader loader, int maxImages) {
+        this.loader = loader;
+        this.maxImages = maxImages;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nd-image-prefetcher");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Prefetches a set of images, superseding any previous request
+     * 
+     * @param requests
+     *            The images to prefetch, in order of priority. Only the first
+     *            {@link Prefetcher#getMaxImages()} will be loaded
+     */
+    public void prefetch(List<ImageLoader.Request> requests) {
+        final long requestId = currentRequest.incrementAndGet();
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        if (maxImages == 0 || requests.isEmpty()) {
+            pending = null;
+            return;
+        }
+        final List<ImageLoader.Request> toLoad = new ArrayList<>(requests.subList(0,
+                Math.min(maxImages, requests.size())));
+        pending = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (ImageLoader.Request imageRequest : toLoad) {
+                    if (currentRequest.get() != requestId) {
+                        /*
+                         * A new selection has been made
+                         */
+                        return;
+                    }
+                    loader.prefetch(imageRequest);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The maximum number of images to prefetch for each selection
+     */
+    public int getMaxImages() {
+        return maxImages;
+    }
+
+    /**
+     * Stops all prefetching
+     */
+    public void shutdown() {
+        currentRequest.incrementAndGet();
+        executor.shutdownNow();
+    }
+}
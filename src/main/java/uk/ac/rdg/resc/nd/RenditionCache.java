@@ -0,0 +1,453 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.nd;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A cache on local disk of downscaled copies ("renditions") of the images.
+ * 
+ * Renditions are made at a few standard sizes, and are keyed by the path,
+ * modification time and size of the original image. Where the cell an image is
+ * displayed in is small enough, the rendition can be read instead of the
+ * (potentially much larger, and on slower storage) original.
+ * 
+ * When the total size of the cache exceeds its limit, the least recently used
+ * renditions are deleted. When each rendition was last used is kept in memory,
+ * and only written to the files' modification times on shutdown, so that
+ * reading a rendition does not also write to the disk.
+ *
+ * @author Guy Griffiths
+ */
+public class RenditionCache {
+    /** The sizes of the renditions, as the length of the longest edge */
+    public static final int[] SIZES = new int[] { 256, 512, 1024, 2048 };
+    /** The fraction of the maximum size to reduce the cache to when evicting */
+    private static final double EVICT_TO = 0.9;
+
+    /** The directory containing the renditions */
+    private final File dir;
+    /** The maximum total size of the renditions, in bytes */
+    private final long maxBytes;
+    /** The current total size of the renditions, in bytes */
+    private final AtomicLong totalBytes = new AtomicLong(0L);
+    /** The renditions which are waiting to be built in the background */
+    private final Set<String> queued = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * The time each rendition was last used, by file name, since the cache was
+     * opened. Renditions which have not been used since then are ordered by
+     * their modification time.
+     */
+    private final Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+    /** The thread which builds renditions in the background */
+    private final ExecutorService builder;
+
+    /**
+     * @param dir
+     *            The directory to store renditions in. It will be created if it
+     *            does not exist
+     * @param maxBytes
+     *            The maximum total size of the renditions, in bytes
+     */
+    public RenditionCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        File[] existing = dir.listFiles();
+        if (existing != null) {
+            for (File file : existing) {
+                totalBytes.addAndGet(file.length());
+            }
+        }
+        builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nd-rendition-builder");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Finds the smallest rendition size which is large enough to fill a cell
+     * 
+     * @param width
+     *            The width of the cell
+     * @param height
+     *            The height of the cell
+     * @return The rendition size, or -1 if the cell is larger than all
+     *         rendition sizes
+     */
+    static int sizeFor(int width, int height) {
+        int needed = Math.max(width, height);
+        for (int size : SIZES) {
+            if (size >= needed) {
+                return size;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds an existing rendition of an image which is large enough to fill a
+     * cell
+     * 
+     * @param source
+     *            The original image {@link File}
+     * @param lastModified
+     *            The modification time of the original image
+     * @param width
+     *            The width of the cell
+     * @param height
+     *            The height of the cell
+     * @return The rendition {@link File}, or <code>null</code> if there is no
+     *         suitable rendition
+     */
+    public File find(File source, long lastModified, int width, int height) {
+        int size = sizeFor(width, height);
+        if (size < 0) {
+            return null;
+        }
+        File rendition = getRenditionFile(source, lastModified, size);
+        if (!rendition.exists()) {
+            return null;
+        }
+        /*
+         * Recorded for eviction purposes
+         */
+        lastUsed.put(rendition.getName(), System.currentTimeMillis());
+        return rendition;
+    }
+
+    /**
+     * Queues a rendition to be built on a background thread, if the cell is
+     * small enough for one to be used
+     * 
+     * @param source
+     *            The original image {@link File}
+     * @param lastModified
+     *            The modification time of the original image
+     * @param width
+     *            The width of the cell
+     * @param height
+     *            The height of the cell
+     */
+    public void buildLater(final File source, final long lastModified, int width, int height) {
+        final int size = sizeFor(width, height);
+        if (size < 0) {
+            return;
+        }
+        final String name = getRenditionFile(source, lastModified, size).getName();
+        if (!queued.add(name)) {
+            return;
+        }
+        builder.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    build(source, lastModified, size);
+                } catch (IOException e) {
+                    System.out.println("Problem creating rendition of " + source + ": "
+                            + e.getMessage());
+                } finally {
+                    queued.remove(name);
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds renditions of an image, if they do not already exist. The
+     * original is only read once, however many sizes are requested.
+     * 
+     * @param source
+     *            The original image {@link File}
+     * @param lastModified
+     *            The modification time of the original image
+     * @param sizes
+     *            The rendition sizes to build
+     * @throws IOException
+     *             If there is a problem reading the original or writing a
+     *             rendition
+     */
+    public void build(File source, long lastModified, int... sizes) throws IOException {
+        /*
+         * Build the largest first, and use it as the source of the next, since
+         * that's quicker and gives better quality than scaling straight down
+         */
+        int[] descending = sizes.clone();
+        Arrays.sort(descending);
+        BufferedImage image = null;
+        for (int i = descending.length - 1; i >= 0; i--) {
+            File rendition = getRenditionFile(source, lastModified, descending[i]);
+            if (rendition.exists()) {
+                continue;
+            }
+            if (image == null) {
+                image = ImageIO.read(source);
+                if (image == null) {
+                    throw new IOException("Unsupported image format");
+                }
+            }
+            image = scale(image, descending[i]);
+            write(image, rendition);
+        }
+    }
+
+    /**
+     * Builds renditions of all of the given images at all sizes. This is used
+     * to fill the cache for a whole dataset in advance.
+     * 
+     * @param sources
+     *            The original image {@link File}s
+     * @param nThreads
+     *            The number of images to process in parallel
+     * @throws InterruptedException
+     *             If interrupted while waiting for the renditions to be built
+     */
+    public void buildAll(Collection<File> sources, int nThreads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        final AtomicLong done = new AtomicLong(0L);
+        final int total = sources.size();
+        for (final File source : sources) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        build(source, source.lastModified(), SIZES);
+                    } catch (IOException e) {
+                        System.out.println("Problem creating rendition of " + source + ": "
+                                + e.getMessage());
+                    }
+                    long n = done.incrementAndGet();
+                    if (n % 100 == 0 || n == total) {
+                        System.out.println("Built renditions for " + n + "/" + total + " images");
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * Scales an image so that its longest edge is no greater than the given
+     * size. Images which are already small enough are returned unchanged.
+     * 
+     * @param image
+     *            The {@link BufferedImage} to scale
+     * @param size
+     *            The maximum length of the longest edge
+     * @return The scaled {@link BufferedImage}
+     */
+    static BufferedImage scale(BufferedImage image, int size) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double factor = (double) size / Math.max(width, height);
+        if (factor >= 1.0) {
+            return image;
+        }
+        int targetWidth = Math.max(1, (int) Math.round(width * factor));
+        int targetHeight = Math.max(1, (int) Math.round(height * factor));
+        /*
+         * Halve the image until we are near the target size. Bilinear
+         * interpolation only samples neighbouring pixels, so scaling straight
+         * down by a large factor would skip most of the source.
+         */
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = scaled.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+            g.dispose();
+            image = scaled;
+        } while (width != targetWidth || height != targetHeight);
+        return image;
+    }
+
+    /**
+     * Writes a rendition to the cache, evicting old renditions if necessary
+     * 
+     * @param image
+     *            The {@link BufferedImage} to write
+     * @param rendition
+     *            The {@link File} to write to
+     * @throws IOException
+     *             If there is a problem writing the file
+     */
+    private void write(BufferedImage image, File rendition) throws IOException {
+        /*
+         * Write to a temporary file first, so that a partially written
+         * rendition is never read
+         */
+        File temp = new File(dir, rendition.getName() + ".tmp");
+        if (!ImageIO.write(image, "png", temp)) {
+            throw new IOException("No PNG writer available");
+        }
+        if (!temp.renameTo(rendition)) {
+            temp.delete();
+            if (!rendition.exists()) {
+                throw new IOException("Could not create " + rendition);
+            }
+            /*
+             * Someone else got there first
+             */
+            return;
+        }
+        if (totalBytes.addAndGet(rendition.length()) > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used renditions until the cache is
+     * comfortably below its maximum size
+     */
+    private synchronized void evict() {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        File[] renditions = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File parent, String name) {
+                /*
+                 * Leave anything which is still being written
+                 */
+                return !name.endsWith(".tmp");
+            }
+        });
+        if (renditions == null) {
+            return;
+        }
+        final long[] used = new long[renditions.length];
+        Integer[] order = new Integer[renditions.length];
+        long total = 0L;
+        for (int i = 0; i < renditions.length; i++) {
+            Long time = lastUsed.get(renditions[i].getName());
+            used[i] = time == null ? renditions[i].lastModified() : time;
+            order[i] = i;
+            total += renditions[i].length();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Long.compare(used[i1], used[i2]);
+            }
+        });
+        long target = (long) (maxBytes * EVICT_TO);
+        for (int i = 0; i < order.length && total > target; i++) {
+            File rendition = renditions[order[i]];
+            long length = rendition.length();
+            if (rendition.delete()) {
+                total -= length;
+                lastUsed.remove(rendition.getName());
+            }
+        }
+        totalBytes.set(total);
+    }
+
+    /**
+     * Gets the location of a rendition in the cache
+     * 
+     * @param source
+     *            The original image {@link File}
+     * @param lastModified
+     *            The modification time of the original image
+     * @param size
+     *            The rendition size
+     * @return The {@link File} which the rendition is stored in
+     */
+    private File getRenditionFile(File source, long lastModified, int size) {
+        String key = source.getAbsolutePath() + "|" + lastModified + "|" + size;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 4);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            name.append(".png");
+            return new File(dir, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * All Java implementations are required to support SHA-1
+             */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The current total size of the renditions, in bytes
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Stops building renditions in the background, and records when each
+     * rendition used since the cache was opened was last used, as its
+     * modification time
+     */
+    public void shutdown() {
+        builder.shutdownNow();
+        for (Entry<String, Long> entry : lastUsed.entrySet()) {
+            new File(dir, entry.getKey()).setLastModified(entry.getValue());
+        }
+        lastUsed.clear();
+    }
+}
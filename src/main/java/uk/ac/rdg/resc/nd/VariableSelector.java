@@ -28,9 +28,7 @@
 
 package uk.ac.rdg.resc.nd;
 
-import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import javafx.beans.value.ChangeListener;
@@ -41,6 +39,7 @@ import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TitledPane;
@@ -54,6 +53,11 @@ import javafx.scene.layout.VBox;
  * @author Guy Griffiths
  */
 public class VariableSelector extends VBox {
+    /** The frame rates which can be chosen for playback */
+    private static final Integer[] PLAYBACK_RATES = { 1, 2, 5, 10, 15, 25, 30 };
+    /** The frame rate chosen for playback by default */
+    private static final int DEFAULT_PLAYBACK_RATE = 10;
+
     /** The {@link ImageController} which will receive events */
     private ImageController controller;
     /** The {@link ChoiceBox}s which control the dimensions */
@@ -68,6 +72,14 @@ public class VariableSelector extends VBox {
      * choices
      */
     private boolean disableImageSelection = true;
+    /** The indices of the selected values when the choices were last repopulated */
+    private int[] lastPopulated = null;
+    /** The {@link Player} playing through a dimension, if there is one */
+    private Player player = null;
+    /** Starts and stops playback */
+    private Button playButton;
+    /** Shows the frame rate achieved during playback */
+    private Label playbackRate;
 
     /**
      * Create a new {@link VariableSelector}
@@ -135,10 +147,11 @@ public class VariableSelector extends VBox {
             variablesGrid.add(new Label(dimension.getDimTitle()), 0, i);
 
             /*
-             * Create a choice box with the dimension values
+             * Create a choice box for the dimension values. These are filled
+             * in once a value has been selected, since a range may be too
+             * long to show all of its values
              */
-            ChoiceBox<String> dimChoice = new ChoiceBox<>(
-                    FXCollections.observableArrayList(dimension.getValues()));
+            ChoiceBox<String> dimChoice = new ChoiceBox<>();
 
             /*
              * If the value changes, pick a new set of images
@@ -153,6 +166,7 @@ public class VariableSelector extends VBox {
                         if (lastChanged != null && lastChoice != null) {
                             toggle.setDisable(false);
                         }
+                        stopPlayback();
                         selectImageSet();
                     }
                 }
@@ -166,34 +180,78 @@ public class VariableSelector extends VBox {
         }
 
         /*
-         * By default the first value from each dimension is chosen, but this
-         * may not be valid.
-         * 
-         * We generate all possible valid combinations, and then check until we
-         * have one which is valid. When this is found, set the coordinate value
-         * to the valid combination.
+         * Start with a combination which has images. This is taken straight
+         * from the index, rather than searching the possible combinations for
+         * one, which could take a long time if the images are sparse.
          */
-        List<String[]> allCombinations = allCoordCombinations(controller.getSelectableDimensions());
-        boolean valid = false;
-        for (String[] c : allCombinations) {
-            for (String nonSelectableValue : controller.getNonSelectableDimension().getValues()) {
-                File path = controller.getPath(nonSelectableValue, c);
-                if (path != null) {
-                    valid = true;
-                    break;
-                }
-            }
-            if (valid) {
-                for (int i = 0; i < c.length; i++) {
-                    dimChoices.get(i).setValue(c[i]);
-                }
-                break;
+        CoordinateSpace space = controller.getCoordinateSpace();
+        int[] initial = controller.getAvailabilityIndex().getAnyCombination();
+        for (int i = 0; i < dimChoices.size(); i++) {
+            dimChoices.get(i).setItems(FXCollections.observableArrayList(controller
+                    .getAvailabilityIndex().getChoices(i, initial)));
+            if (initial != null) {
+                dimChoices.get(i).setValue(space.valueOf(i, initial[i]));
             }
         }
 
         getChildren().add(variablesGrid);
         getChildren().add(toggle);
 
+        /*
+         * Show where the images differ from the last selection
+         */
+        CheckBox showDifferences = new CheckBox("Show differences from last");
+        showDifferences.selectedProperty().addListener(new ChangeListener<Boolean>() {
+            @Override
+            public void changed(ObservableValue<? extends Boolean> observable,
+                    Boolean oldValue, Boolean newValue) {
+                controller.setDifferenceMode(newValue);
+            }
+        });
+        getChildren().add(showDifferences);
+
+        /*
+         * Play through the values of a dimension
+         */
+        GridPane playbackGrid = new GridPane();
+        playbackGrid.getStyleClass().add("nd-grid-variables");
+        playbackGrid.setHgap(10);
+        playbackGrid.setVgap(10);
+        playbackGrid.setPadding(new Insets(20));
+        playbackGrid.setMinWidth(0);
+
+        List<String> titles = new ArrayList<>();
+        for (Dimension dimension : controller.getSelectableDimensions()) {
+            titles.add(dimension.getDimTitle());
+        }
+        final ChoiceBox<String> playDimension = new ChoiceBox<>(
+                FXCollections.observableArrayList(titles));
+        playDimension.getSelectionModel().select(0);
+        final ChoiceBox<Integer> playFps = new ChoiceBox<>(
+                FXCollections.observableArrayList(PLAYBACK_RATES));
+        playFps.setValue(DEFAULT_PLAYBACK_RATE);
+        playbackRate = new Label();
+        playButton = new Button("Play");
+        playButton.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                if (player != null) {
+                    stopPlayback();
+                    selectImageSet();
+                } else {
+                    startPlayback(playDimension.getSelectionModel().getSelectedIndex(),
+                            playFps.getValue());
+                }
+            }
+        });
+        playbackGrid.add(new Label("Play through"), 0, 0);
+        playbackGrid.add(playDimension, 1, 0);
+        playbackGrid.add(new Label("Frames per second"), 0, 1);
+        playbackGrid.add(playFps, 1, 1);
+        playbackGrid.add(playButton, 0, 2);
+        playbackGrid.add(playbackRate, 1, 2);
+        getChildren().add(playbackGrid);
+
         /*
          * The fullscreen button
          */
@@ -206,6 +264,22 @@ public class VariableSelector extends VBox {
         });
         getChildren().add(toggleFullscreenButton);
 
+        /*
+         * Show the frame times, if they are being watched
+         */
+        final FxWatchdog watchdog = controller.getWatchdog();
+        if (watchdog != null) {
+            CheckBox showFrameTimes = new CheckBox("Show frame times");
+            showFrameTimes.selectedProperty().addListener(new ChangeListener<Boolean>() {
+                @Override
+                public void changed(ObservableValue<? extends Boolean> observable,
+                        Boolean oldValue, Boolean newValue) {
+                    watchdog.setOverlayVisible(newValue);
+                }
+            });
+            getChildren().add(showFrameTimes);
+        }
+
         /*
          * The quit button
          */
@@ -220,6 +294,16 @@ public class VariableSelector extends VBox {
 
         this.controller = controller;
 
+        /*
+         * When images are added or removed, the valid choices may change
+         */
+        controller.addAvailabilityListener(new Runnable() {
+            @Override
+            public void run() {
+                repopulateChoices(true);
+            }
+        });
+
         /*
          * Setup done, enable image selection
          */
@@ -227,123 +311,153 @@ public class VariableSelector extends VBox {
     }
 
     /**
-     * Generates all possible combinations of the available dimensions
-     * 
-     * @param dimensions
-     *            A {@link List} of the {@link Dimension}s to generate
-     *            combinations for
-     * @return A {@link List} of arrays of {@link String}s which represent all
-     *         possible combinations of values
+     * @return The indices of the values currently selected, as given by
+     *         {@link ImageController#getCoordinateSpace()}
      */
-    private static List<String[]> allCoordCombinations(List<Dimension> dimensions) {
-        /*
-         * The method is destructive so we take a copy
-         */
-        dimensions = new ArrayList<>(dimensions);
-        if (dimensions.size() == 0) {
-            return new ArrayList<String[]>();
-        }
-        Dimension firstDimension = dimensions.remove(0);
-        List<String[]> coordCombination = new ArrayList<String[]>();
-        for (String coord : firstDimension.getValues()) {
-            String[] coords = new String[] { coord };
-            coordCombination.add(coords);
+    private int[] getSelectedIndices() {
+        CoordinateSpace space = controller.getCoordinateSpace();
+        int[] selected = new int[dimChoices.size()];
+        for (int i = 0; i < selected.length; i++) {
+            selected[i] = space.indexOf(i, dimChoices.get(i).getValue());
         }
-
-        return coordCombinationsHelper(dimensions, coordCombination);
+        return selected;
     }
 
     /**
-     * Helper method
-     * 
-     * @param remainingDimensions
-     *            The remaining dimensions which have not been combined yet
-     * @param coordCombinations
-     *            Already processed combinations
-     * @return
+     * Sets the currently selected values as the images
      */
-    private static List<String[]> coordCombinationsHelper(List<Dimension> remainingDimensions,
-            List<String[]> coordCombinations) {
-        if (remainingDimensions.size() == 0) {
-            return coordCombinations;
-        }
-        Dimension myFirstList = remainingDimensions.remove(0);
-        List<String[]> newCombinations = new ArrayList<String[]>();
-
-        for (String[] s : coordCombinations) {
-            for (String s2 : myFirstList.getValues()) {
-                String[] values = Arrays.copyOf(s, s.length + 1);
-                values[s.length] = s2;
-                newCombinations.add(values);
-            }
-        }
-
-        return coordCombinationsHelper(remainingDimensions, newCombinations);
+    void selectImageSet() {
+        controller.selectImageSet(getSelectedIndices());
+        repopulateChoices(false);
     }
 
     /**
-     * @return The values currently selected, as an array of {@link String}s
+     * Starts playing through a dimension, keeping its {@link ChoiceBox} up to
+     * date with the frame being shown
+     * 
+     * @param dimension
+     *            The index of the dimension to play through
+     * @param fps
+     *            The target frame rate
      */
-    private String[] getSelectedValues() {
-        String[] selected = new String[dimChoices.size()];
-        for (int i = 0; i < selected.length; i++) {
-            selected[i] = dimChoices.get(i).getValue();
+    private void startPlayback(final int dimension, int fps) {
+        player = controller.startPlayback(dimension, fps, new Runnable() {
+            @Override
+            public void run() {
+                disableImageSelection = true;
+                String value = player.getCoords()[dimension];
+                ChoiceBox<String> dimChoice = dimChoices.get(dimension);
+                dimChoice.setValue(value);
+                if (!dimChoice.getItems().contains(value)) {
+                    /*
+                     * Playback has moved beyond the values being offered
+                     */
+                    repopulateChoice(dimension, getSelectedIndices());
+                }
+                disableImageSelection = false;
+                if (player.getAchievedFps() > 0) {
+                    playbackRate.setText(String.format("%.1f of %.0f fps, %d dropped",
+                            player.getAchievedFps(), player.getTargetFps(), player
+                                    .getDropped()));
+                }
+            }
+        });
+        if (player == null) {
+            playbackRate.setText("Nothing to play");
+            return;
         }
-        return selected;
+        playButton.setText("Stop");
+        playbackRate.setText("Loading...");
     }
 
     /**
-     * Sets the currently selected values as the images
+     * Stops playback, if it is running. The frame which was being shown
+     * remains selected.
      */
-    void selectImageSet() {
-        controller.selectImageSet(getSelectedValues());
-        repopulateChoices();
+    private void stopPlayback() {
+        if (player != null) {
+            controller.stopPlayback();
+            player = null;
+            playButton.setText("Play");
+            playbackRate.setText("");
+        }
     }
 
     /**
      * Given the currently selected dimensions, repopulates the choice boxes so
      * that no set can be selected which would be entirely empty
+     * 
+     * @param all
+     *            Whether to check every dimension. If <code>false</code>, a
+     *            dimension is only checked if the values of the other
+     *            dimensions have changed since the last call, or if it is
+     *            only showing some of its values and its own has changed
      */
-    private void repopulateChoices() {
+    private void repopulateChoices(boolean all) {
+        long start = System.nanoTime();
+        CoordinateSpace space = controller.getCoordinateSpace();
+        int[] selected = getSelectedIndices();
+
         /*
-         * Add a box for each of the selectable dimensions
+         * The values available for a dimension only depend on the values of
+         * the others, so if just one dimension has changed its own choices
+         * are still valid, unless they need to move along with it
          */
-        for (int i = 0; i < controller.getSelectableDimensions().size(); i++) {
-            /*
-             * Get the dimension which can be changed
-             */
-            Dimension dimension = controller.getSelectableDimensions().get(i);
+        int nChanged = 0;
+        int changed = -1;
+        for (int i = 0; i < selected.length; i++) {
+            if (lastPopulated == null || selected[i] != lastPopulated[i]) {
+                nChanged++;
+                changed = i;
+            }
+        }
+        lastPopulated = selected;
 
-            ChoiceBox<String> dimChoice = dimChoices.get(i);
-            String currentValue = dimChoice.getSelectionModel().getSelectedItem();
-
-            ObservableList<String> newValues = FXCollections.observableArrayList();
-            Dimension nonSelectableDimension = controller.getNonSelectableDimension();
-            for (String value : dimension.getValues()) {
-                String[] selectedValues = getSelectedValues();
-                selectedValues[i] = value;
-                /*
-                 * Check the non-selectable image paths until we find one which
-                 * exists (File object returned is non-null). If all images are
-                 * unavailable, this value is not added
-                 */
-                for (String nonSelectableValue : nonSelectableDimension.getValues()) {
-                    File path = controller.getPath(nonSelectableValue, selectedValues);
-                    if (path != null) {
-                        newValues.add(value);
-                        break;
-                    }
-                }
+        for (int i = 0; i < controller.getSelectableDimensions().size(); i++) {
+            if (!all && (nChanged == 0 || nChanged == 1 && i == changed
+                    && space.size(i) <= AvailabilityIndex.MAX_CHOICES)) {
+                continue;
             }
+            repopulateChoice(i, selected);
+        }
+        controller.getMetrics().choicesRepopulated(System.nanoTime() - start);
+    }
 
-            /*
-             * We don't want to retrigger selection and repopulation, so we
-             * disable image selection before programmatically setting the value
-             */
-            disableImageSelection = true;
-            dimChoice.setItems(newValues);
-            dimChoice.setValue(currentValue);
-            disableImageSelection = false;
+    /**
+     * Repopulates the choice box of a single dimension with the values which
+     * have images given the selected values of the others
+     * 
+     * @param dimension
+     *            The index of the dimension
+     * @param selected
+     *            The indices of the selected values
+     */
+    private void repopulateChoice(int dimension, int[] selected) {
+        CoordinateSpace space = controller.getCoordinateSpace();
+        ChoiceBox<String> dimChoice = dimChoices.get(dimension);
+
+        /*
+         * A single lookup gives the values which have images given the other
+         * dimensions, or a page of them for long dimensions
+         */
+        ObservableList<String> newValues = FXCollections.observableArrayList(controller
+                .getAvailabilityIndex().getChoices(dimension, selected));
+
+        /*
+         * Replacing the items rebuilds the choice box's menu, so only do it if
+         * they have changed
+         */
+        if (newValues.equals(dimChoice.getItems())) {
+            return;
         }
+        /*
+         * We don't want to retrigger selection and repopulation, so we disable
+         * image selection before programmatically setting the value
+         */
+        boolean wasDisabled = disableImageSelection;
+        disableImageSelection = true;
+        dimChoice.setItems(newValues);
+        dimChoice.setValue(space.valueOf(dimension, selected[dimension]));
+        disableImageSelection = wasDisabled;
     }
 }